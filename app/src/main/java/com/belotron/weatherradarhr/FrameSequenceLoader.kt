@@ -25,27 +25,41 @@ import com.belotron.weatherradarhr.FetchPolicy.PREFER_CACHED
 import com.belotron.weatherradarhr.Outcome.FAILURE
 import com.belotron.weatherradarhr.Outcome.PARTIAL_SUCCESS
 import com.belotron.weatherradarhr.Outcome.SUCCESS
+import com.belotron.weatherradarhr.gifdecode.Allocator
 import com.belotron.weatherradarhr.gifdecode.BitmapFreelists
+import com.belotron.weatherradarhr.gifdecode.GifDecoder
+import com.belotron.weatherradarhr.gifdecode.GifFrame
+import com.belotron.weatherradarhr.gifdecode.GifParser
 import com.belotron.weatherradarhr.gifdecode.GifSequence
 import com.belotron.weatherradarhr.gifdecode.Pixels
+import kotlinx.coroutines.CoroutineStart.UNDISPATCHED
 import kotlinx.coroutines.Deferred
 import kotlinx.coroutines.Dispatchers.Default
 import kotlinx.coroutines.Dispatchers.IO
 import kotlinx.coroutines.async
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.channels.Channel.Factory.UNLIMITED
 import kotlinx.coroutines.coroutineScope
 import kotlinx.coroutines.delay
 import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.launch
 import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
 import kotlinx.coroutines.withContext
 import java.time.LocalDateTime
 import java.time.ZoneOffset
 import java.time.format.DateTimeFormatter
-import java.util.TreeSet
+import java.util.TreeMap
 import java.util.concurrent.TimeUnit
 import kotlin.math.ceil
+import kotlin.math.min
 
 private const val SEQUENCE_RETRY_DELAY_MILLIS = 7_000L
+private const val MAX_CONCURRENT_FRAME_FETCHES = 4
+
+// OCR every this many frames of an animated GIF, the rest get their timestamps from the cadence
+private const val OCR_ANCHOR_INTERVAL = 8
 
 enum class Outcome {
     SUCCESS, PARTIAL_SUCCESS, FAILURE
@@ -66,16 +80,30 @@ sealed class FrameSequenceLoader(
         fetchPolicy: FetchPolicy
     ): Flow<FrameSequence<out Frame>?>
 
-    protected suspend fun fetchGifSequenceWithRetrying(context: Context, fetchPolicy: FetchPolicy): GifSequence? {
+    /**
+     * Lets go of what the loader keeps of the given sequence, which it emitted,
+     * to speed up loading the next one. Call it when nothing plays the sequence
+     * anymore. If the loader emitted a newer sequence since, does nothing.
+     */
+    open fun releaseRetained(frameSequence: FrameSequence<out Frame>) {}
+
+    // Returns Pair(version, sequence), see fetchGifSequence()
+    protected suspend fun fetchGifSequenceWithRetrying(
+        context: Context, fetchPolicy: FetchPolicy, frameListener: GifParser.FrameListener? = null,
+        knownVersion: Long = NO_VERSION
+    ): Pair<Long, GifSequence?> {
         while (true) {
-            val (outcome, gifSequence) = try {
-                Pair(SUCCESS, fetchGifSequence(context, url, fetchPolicy))
+            val (outcome, fetched) = try {
+                Pair(SUCCESS, fetchGifSequence(
+                    context, url, fetchPolicy, frameListener, knownVersion,
+                    TimeUnit.MINUTES.toMillis(minutesPerFrame.toLong())
+                ))
             } catch (e: ImageFetchException) {
                 val cached = e.cached as GifSequence?
-                Pair(if (cached != null) PARTIAL_SUCCESS else FAILURE, cached)
+                Pair(if (cached != null) PARTIAL_SUCCESS else FAILURE, Pair(NO_VERSION, cached))
             }
             if (outcome == SUCCESS) {
-                return gifSequence
+                return fetched
             }
             delay(SEQUENCE_RETRY_DELAY_MILLIS)
         }
@@ -86,75 +114,341 @@ class AnimatedGifLoader(
     url: String,
     minutesPerFrame: Int,
     ocrTimestamp: (Pixels) -> Long,
+    // Number of top image rows that hold the timestamp
+    private val ocrRowLimit: Int,
 ) : FrameSequenceLoader(url, minutesPerFrame, ocrTimestamp) {
 
+    // Frames decoded from the previous GIF, keyed by timestamp. Each new GIF is the
+    // previous one minus the oldest frame plus a new one, so most frames carry over.
+    @Volatile private var previousPaletteSequence: PaletteSequence? = null
+    @Volatile private var previousStdFrames: Map<Long, StdFrame> = emptyMap()
+
+    // The last sequence this loader emitted, along with the version of its GIF and
+    // the time it covers. If the GIF didn't change, the loader emits it again.
+    private class Emitted(val sequence: FrameSequence<out Frame>, val version: Long, val animationCoversMinutes: Int)
+    @Volatile private var previousEmitted: Emitted? = null
+
+    // The image of the last frame of the previous GIF. Reusing its frames skips only
+    // their conversion, the new frames would still need compositing onto all of them.
+    // Instead, decoding the next GIF resumes from this canvas.
+    private class Canvas(val timestamp: Long, val width: Int, val height: Int, val pixels: IntArray) {
+        val sizeInBytes: Long get() = 4L * pixels.size
+    }
+    @Volatile private var previousCanvas: Canvas? = null
+
     override fun incrementallyFetchFrameSequence(
         context: Context, animationCoversMinutes: Int, fetchPolicy: FetchPolicy
-    ): Flow<StdSequence?> = flow {
-        val gifSequence = fetchGifSequenceWithRetrying(context, fetchPolicy)
-        if (gifSequence == null) {
-            emit(null)
-            return@flow
-        }
-        val gifFrames = coroutineScope {
-            val gifFrameTasks = mutableListOf<Deferred<StdFrame>>()
-            val allocator = BitmapFreelists()
-            try {
-                // semaphore limits the number of simultaneous bitmaps
-                val semaphore = Semaphore(Runtime.getRuntime().availableProcessors())
-                val decoder = gifSequence.intoDecoder(allocator, ocrTimestamp)
-                val frames = gifSequence.frames
-                withContext(Default) {
-                    (0 until frames.size).forEach { frameIndex ->
-                        val bitmap = decoder.assignTimestampAndGetBitmap(frameIndex)
-                        semaphore.acquire()
-                        gifFrameTasks.add(async {
-                            try {
-                                StdFrame(bitmap.toCompressedBytes(), frames[frameIndex].timestamp)
-                            } finally {
-                                semaphore.release()
-                                allocator.release(bitmap)
-                            }
-                        })
+    ): Flow<FrameSequence<out Frame>?> = flow {
+        val allocator = BitmapFreelists()
+        var decoder: GifDecoder? = null
+        // Indices of the decoder's frames that got OCRed
+        val ocredFrames = HashSet<Int>()
+        val known = previousEmitted?.takeIf { it.animationCoversMinutes == animationCoversMinutes }
+        val knownVersion = known?.version ?: NO_VERSION
+        val frameSequence = try {
+            val (version, gifSequence) = coroutineScope {
+                // OCR the timestamps of the anchor frames while the rest of the GIF is still
+                // downloading, decoding just the image rows that hold them
+                val streamedFrames = Channel<Pair<GifSequence, GifFrame>>(UNLIMITED)
+                val ocrJob = launch(Default) {
+                    for ((sequence, frame) in streamedFrames) {
+                        if (decoder?.sequence !== sequence) {
+                            // This is the first frame, or the download failed and got retried
+                            decoder?.dispose()
+                            decoder = sequence.intoDecoder(allocator, ocrTimestamp)
+                            ocredFrames.clear()
+                        }
+                        if (frame.index % OCR_ANCHOR_INTERVAL == 0) {
+                            decoder!!.assignTimestampFromTopRows(frame.index, ocrRowLimit)
+                            ocredFrames.add(frame.index)
+                        }
                     }
                 }
-            } catch (e: ImageDecodeException) {
-                severe(CC_PRIVATE) { "Error decoding animated GIF: ${e.message}" }
-                withContext(IO) {
-                    context.invalidateCache(url)
+                val fetched = try {
+                    fetchGifSequenceWithRetrying(context, fetchPolicy, GifParser.FrameListener { sequence, frame ->
+                        streamedFrames.trySend(Pair(sequence, frame))
+                    }, knownVersion)
+                } finally {
+                    streamedFrames.close()
                 }
-                throw e
-            } finally {
-                allocator.dispose()
+                ocrJob.join()
+                fetched
             }
-            gifFrameTasks.map { it.await() }.toMutableList()
+            if (gifSequence == null) {
+                if (known != null && version == knownVersion) {
+                    // Not modified. Emitting the same sequence leaves its animator running.
+                    info { "Animated GIF $url not modified" }
+                    known.sequence
+                } else null
+            } else withContext(Default) {
+                val frames = gifSequence.frames
+                if (decoder?.sequence !== gifSequence) {
+                    // The GIF didn't get streamed, e.g., it came from the cache
+                    decoder?.dispose()
+                    decoder = gifSequence.intoDecoder(allocator, ocrTimestamp)
+                    ocredFrames.clear()
+                }
+                assignTimestamps(decoder!!, ocredFrames)
+                val frameIndices = selectFramesToPlay(frames, animationCoversMinutes)
+                resumeFromPreviousCanvas(decoder!!)
+                (decodeToPaletteSequence(decoder!!, allocator, frameIndices)
+                    ?: decodeToStdSequence(decoder!!, allocator, frameIndices)
+                ).also {
+                    keepLastCanvas(decoder!!)
+                    previousEmitted = Emitted(it, version, animationCoversMinutes)
+                }
+            }
+        } catch (e: ImageDecodeException) {
+            severe(CC_PRIVATE) { "Error decoding animated GIF: ${e.message}" }
+            withContext(IO) {
+                context.invalidateCache(url)
+            }
+            throw e
+        } finally {
+            decoder?.dispose()
+            allocator.dispose()
         }
-        // Deduplicate frames, sort them by timestamp, and remove unneeded ones
-        val sortedFrames = TreeSet(compareBy(StdFrame::timestamp)).apply {
-            addAll(gifFrames)
+        emit(frameSequence)
+    }
+
+    /**
+     * OCRs the anchor frames, which are every [OCR_ANCHOR_INTERVAL]-th frame
+     * and the last one, unless they're already in [ocredFrames]. If their
+     * timestamps follow the cadence of [minutesPerFrame], infers the timestamps
+     * of the other frames from it. If they don't, e.g. because the GIF skips or
+     * repeats a frame, OCRs all the frames.
+     */
+    private fun assignTimestamps(decoder: GifDecoder, ocredFrames: MutableSet<Int>) {
+        val frames = decoder.sequence.frames
+        if (frames.isEmpty()) {
+            return
         }
-        val correctFrameCount = correctFrameCount(animationCoversMinutes)
-        val iter = sortedFrames.iterator()
-        while (sortedFrames.size > correctFrameCount && iter.hasNext()) {
-            iter.next()
-            iter.remove()
+        val ocr = { frameIndex: Int ->
+            if (ocredFrames.add(frameIndex)) {
+                decoder.assignTimestampFromTopRows(frameIndex, ocrRowLimit)
+            }
+        }
+        val anchors = anchorFrameIndices(frames.size)
+        anchors.forEach(ocr)
+        val timestamps = timestampsFromCadence(frames.size, anchors.associateWith { frames[it].timestamp }, minutesPerFrame)
+        if (timestamps != null) {
+            frames.forEachIndexed { i, frame ->
+                if (i !in ocredFrames) {
+                    frame.timestamp = timestamps[i]
+                }
+            }
+            debug { "Animated GIF $url: OCRed ${ocredFrames.size} of ${frames.size} frames" }
+        } else {
+            info { "Animated GIF $url: anchor frames are off the cadence, OCRing all the frames" }
+            frames.indices.forEach(ocr)
+        }
+    }
+
+    // If the GIF has the frame whose image the previous canvas holds, decoding starts after it
+    private fun resumeFromPreviousCanvas(decoder: GifDecoder) {
+        val canvas = previousCanvas ?: return
+        val gifSequence = decoder.sequence
+        if (canvas.width != gifSequence.width || canvas.height != gifSequence.height) {
+            return
+        }
+        val frameIndex = gifSequence.frames.indexOfLast { it.timestamp == canvas.timestamp }
+        if (frameIndex >= 0) {
+            debug { "Animated GIF $url: resuming decoding after frame $frameIndex" }
+            decoder.seedCheckpoint(frameIndex, canvas.pixels)
+        }
+    }
+
+    // Usually the decoder has just decoded the last frame, so this only copies it
+    private fun keepLastCanvas(decoder: GifDecoder) {
+        val gifSequence = decoder.sequence
+        val lastTimestamp = gifSequence.frames.lastOrNull()?.timestamp ?: return
+        val previous = previousCanvas
+        if (previous?.timestamp == lastTimestamp
+            && previous.width == gifSequence.width && previous.height == gifSequence.height
+        ) {
+            return
+        }
+        replaceCanvas(Canvas(lastTimestamp, gifSequence.width, gifSequence.height,
+            decoder.copyCanvas(gifSequence.frames.lastIndex)))
+    }
+
+    // Keeps the frame memory budget informed of the canvas
+    @Synchronized
+    private fun replaceCanvas(canvas: Canvas?) {
+        val previous = previousCanvas
+        previousCanvas = canvas
+        FrameMemoryBudget.allocated((canvas?.sizeInBytes ?: 0) - (previous?.sizeInBytes ?: 0))
+    }
+
+    override fun releaseRetained(frameSequence: FrameSequence<out Frame>) {
+        if (previousEmitted?.sequence !== frameSequence) {
+            return
         }
-        gifFrames.apply {
-            clear()
-            addAll(sortedFrames)
+        info { "Animated GIF $url: releasing the frames kept for the next GIF" }
+        previousEmitted = null
+        previousPaletteSequence = null
+        previousStdFrames = emptyMap()
+        replaceCanvas(null)
+    }
+
+    // Returns null if the frames have more colors than a palette can hold
+    private suspend fun decodeToPaletteSequence(
+        decoder: GifDecoder, allocator: Allocator, frameIndices: List<Int>
+    ): PaletteSequence? {
+        val gifSequence = decoder.sequence
+        val pixelCount = gifSequence.width * gifSequence.height
+        val previous = previousPaletteSequence
+            ?.takeIf { it.width == gifSequence.width && it.height == gifSequence.height }
+        val previousIndexByTimestamp = previous?.frames?.withIndex()?.associate { (i, frame) -> frame.timestamp to i }
+            ?: emptyMap()
+        // Keeping the previous palette keeps the previous index planes valid
+        val paletteBuilder = PaletteBuilder(previous?.palette ?: IntArray(0))
+        val paletteFrames = mutableListOf<PaletteFrame>()
+        val newFrameIndices = frameIndices.filter { frameIndex ->
+            val timestamp = gifSequence.frames[frameIndex].timestamp
+            val previousIndex = previousIndexByTimestamp[timestamp] ?: return@filter true
+            paletteFrames.add(PaletteFrame(previous!!.unpackedIndices(previousIndex), timestamp))
+            false
+        }
+        info { "Animated GIF $url: reusing ${paletteFrames.size} frames, decoding ${newFrameIndices.size}" }
+        val fitsPalette = forEachFrame(decoder, allocator, newFrameIndices) { frameIndex, pixelCodes ->
+            val pixels = decoder.getPixels(frameIndex, pixelCodes)
+            val timestamp = gifSequence.frames[frameIndex].timestamp
+            val paletteFrame = paletteBuilder.toPaletteFrame(pixels, pixelCount, timestamp) ?: return@forEachFrame false
+            paletteFrames.add(paletteFrame)
+            true
+        }
+        if (!fitsPalette) {
+            previousPaletteSequence = null
+            if (previous != null) {
+                // The colors of the frames that got dropped may have filled up the palette
+                return decodeToPaletteSequence(decoder, allocator, frameIndices)
+            }
+            info { "Animated GIF $url has too many colors for a palette" }
+            return null
+        }
+        paletteFrames.sortBy { it.timestamp }
+        return paletteBuilder.buildSequence(gifSequence.width, gifSequence.height, paletteFrames).also {
+            previousPaletteSequence = it
+            previousStdFrames = emptyMap()
         }
-        emit(StdSequence(gifFrames))
     }
+
+    private suspend fun decodeToStdSequence(
+        decoder: GifDecoder, allocator: Allocator, frameIndices: List<Int>
+    ): StdSequence = coroutineScope {
+        val previousFrames = previousStdFrames
+        val reusedFrames = mutableListOf<StdFrame>()
+        val newFrameIndices = frameIndices.filter { frameIndex ->
+            val previousFrame = previousFrames[decoder.sequence.frames[frameIndex].timestamp] ?: return@filter true
+            reusedFrames.add(previousFrame)
+            false
+        }
+        info { "Animated GIF $url: reusing ${reusedFrames.size} frames, decoding ${newFrameIndices.size}" }
+        val gifFrameTasks = mutableListOf<Deferred<StdFrame>>()
+        // semaphore limits the number of simultaneous bitmaps
+        val semaphore = Semaphore(Runtime.getRuntime().availableProcessors())
+        forEachFrame(decoder, allocator, newFrameIndices) { frameIndex, pixelCodes ->
+            val bitmap = decoder.getBitmap(frameIndex, pixelCodes)
+            semaphore.acquire()
+            gifFrameTasks.add(async {
+                try {
+                    StdFrame(bitmap.toCompressedBytes(), decoder.sequence.frames[frameIndex].timestamp)
+                } finally {
+                    semaphore.release()
+                    allocator.release(bitmap)
+                }
+            })
+            true
+        }
+        val frames = (reusedFrames + gifFrameTasks.map { it.await() }).sortedBy { it.timestamp }
+        previousStdFrames = frames.associateBy { it.timestamp }
+        previousPaletteSequence = null
+        StdSequence(frames.toMutableList())
+    }
+
+    // LZW-decodes up to lzwWindow frames ahead in parallel and passes them in order
+    // to the action, which composites them. Stops early if the action returns false.
+    private suspend fun forEachFrame(
+        decoder: GifDecoder, allocator: Allocator, frameIndices: List<Int>,
+        action: suspend (frameIndex: Int, pixelCodes: ByteArray) -> Boolean
+    ): Boolean = coroutineScope {
+        val lzwWindow = Runtime.getRuntime().availableProcessors()
+        val pixelCodesTasks = ArrayDeque<Deferred<ByteArray>>()
+        val decodePixelCodesAsync = { frameIndex: Int ->
+            pixelCodesTasks.add(async { decoder.decodePixelCodes(frameIndex) })
+        }
+        (0 until min(lzwWindow, frameIndices.size)).forEach { decodePixelCodesAsync(frameIndices[it]) }
+        frameIndices.forEachIndexed { i, frameIndex ->
+            val pixelCodes = pixelCodesTasks.removeFirst().await()
+            frameIndices.getOrNull(i + lzwWindow)?.also { decodePixelCodesAsync(it) }
+            val keepGoing = try {
+                action(frameIndex, pixelCodes)
+            } finally {
+                allocator.release(pixelCodes)
+            }
+            if (!keepGoing) {
+                pixelCodesTasks.forEach { it.cancel() }
+                return@coroutineScope false
+            }
+        }
+        true
+    }
+
+    // Deduplicates frames by timestamp, drops the ones older than the animation covers,
+    // and returns the indices of the remaining frames in the order they appear in the GIF.
+    private fun selectFramesToPlay(frames: List<GifFrame>, animationCoversMinutes: Int): List<Int> {
+        val indicesByTimestamp = TreeMap<Long, Int>()
+        frames.forEachIndexed { i, frame -> indicesByTimestamp.putIfAbsent(frame.timestamp, i) }
+        val correctFrameCount = correctFrameCount(animationCoversMinutes)
+        while (indicesByTimestamp.size > correctFrameCount) {
+            indicesByTimestamp.pollFirstEntry()
+        }
+        return indicesByTimestamp.values.sorted()
+    }
+}
+
+// Every OCR_ANCHOR_INTERVAL-th frame and the last one
+internal fun anchorFrameIndices(frameCount: Int): List<Int> =
+    if (frameCount == 0) emptyList()
+    else ((0 until frameCount step OCR_ANCHOR_INTERVAL) + (frameCount - 1)).distinct()
+
+/**
+ * Infers the timestamps of all the frames from those of the anchor frames,
+ * keyed by frame index, if they follow the cadence of one frame every
+ * [minutesPerFrame]. Returns null if they don't, or the first or the last
+ * frame isn't among them.
+ */
+internal fun timestampsFromCadence(frameCount: Int, anchorTimestamps: Map<Int, Long>, minutesPerFrame: Int): LongArray? {
+    val firstTimestamp = anchorTimestamps[0] ?: return null
+    val lastTimestamp = anchorTimestamps[frameCount - 1] ?: return null
+    // Allow for a GIF that starts with the newest frame
+    val direction = if (lastTimestamp >= firstTimestamp) 1 else -1
+    val stepMillis = direction * TimeUnit.MINUTES.toMillis(minutesPerFrame.toLong())
+    if (anchorTimestamps.any { (i, timestamp) -> timestamp - firstTimestamp != i * stepMillis }) {
+        return null
+    }
+    return LongArray(frameCount) { firstTimestamp + it * stepMillis }
 }
 
-fun hrSequenceLoader(urlKeyword: String, ocrTimestamp: (Pixels) -> Long) =
-    AnimatedGifLoader("https://vrijeme.hr/anim_${urlKeyword}.gif", 5, ocrTimestamp)
+fun hrKompozitSequenceLoader() =
+    hrSequenceLoader("kompozit", HrOcr::ocrTimestampKompozit, HrOcr.KOMPOZIT_TIMESTAMP_ROWS)
+
+fun hrSingleSequenceLoader(urlKeyword: String) =
+    hrSequenceLoader(urlKeyword, HrOcr::ocrTimestampSingle, HrOcr.SINGLE_TIMESTAMP_ROWS)
+
+private fun hrSequenceLoader(urlKeyword: String, ocrTimestamp: (Pixels) -> Long, ocrRowLimit: Int) =
+    AnimatedGifLoader("https://vrijeme.hr/anim_${urlKeyword}.gif", 5, ocrTimestamp, ocrRowLimit)
 
 fun sloSequenceLoader() = AnimatedGifLoader(
-    "https://meteo.arso.gov.si/uploads/probase/www/observ/radar/si0-rm-anim.gif", 5, SloOcr::ocrSloTimestamp
+    "https://meteo.arso.gov.si/uploads/probase/www/observ/radar/si0-rm-anim.gif", 5, SloOcr::ocrSloTimestamp,
+    SloOcr.TIMESTAMP_ROWS
 )
 
-class MetNoSatelliteLoader : FrameSequenceLoader(
+class MetNoSatelliteLoader(
+    // How many frame images to download at once
+    private val maxConcurrentFetches: Int = MAX_CONCURRENT_FRAME_FETCHES
+) : FrameSequenceLoader(
     // Hack: reports 2 mins per frame where it's actually 15 mins.
     // This speeds it up 7.5x and covers 7.5x more time, appropriate for a satellite animation.
     "https://api.met.no/weatherapi/geosatellite/1.4", 2, { 0 }
@@ -195,32 +489,53 @@ class MetNoSatelliteLoader : FrameSequenceLoader(
             framesToFetch.filter { it.minute % 30 == 0 },
             framesToFetch,
         )
-        for (dlList in dlLists) {
-            if (dlList.isEmpty()) continue
-            val imgUrl0 = "$url/?area=europe&size=normal&type=infrared&time=${dlList[0].timeStr}"
-            val (_, firstBytes) = fetchBytes(context, imgUrl0, PREFER_CACHED)
-            if (firstBytes == null || firstBytes.isEmpty()) continue
-            val frames = mutableListOf(StdFrame(firstBytes, dlList[0].epochMillis))
-            var frameCount = 1
-            forLoop@ for (i in 1 ..< dlList.size) {
-                val imgUrl = "$url/?area=europe&size=normal&type=infrared&time=${dlList[i].timeStr}"
-                val (_, frameBytes) = fetchBytes(context, imgUrl, PREFER_CACHED)
-                if (frameBytes == null || frameBytes.isEmpty()) continue
-                val earlierTs = dlList[i].epochMillis
-                var laterTs = dlList[i - 1].epochMillis
-                var interpolationCount = 0
-                while (laterTs > earlierTs && interpolationCount < 12) {
-                    if (frameCount == targetFrameCount) {
-                        break@forLoop
+        coroutineScope {
+            // Each list refines the previous one, so download their union just once, all
+            // at the same time up to the limit. The coarse frames come first, so the first
+            // sequence shows up soon. The semaphore grants the permits in request order.
+            // A frame that fails to download just gets left out, so it doesn't cancel
+            // the other downloads and the sequences that don't need it still show up.
+            val semaphore = Semaphore(maxConcurrentFetches)
+            val frameFetches = HashMap<String, Deferred<ByteArray?>>()
+            for (frame in dlLists.flatten()) {
+                frameFetches.getOrPut(frame.timeStr) {
+                    async(start = UNDISPATCHED) {
+                        semaphore.withPermit {
+                            val imgUrl = "$url/?area=europe&size=normal&type=infrared&time=${frame.timeStr}"
+                            try {
+                                fetchBytes(context, imgUrl, PREFER_CACHED).second
+                            } catch (e: ImageFetchException) {
+                                e.cached as ByteArray?
+                            }?.takeIf { it.isNotEmpty() }
+                        }
+                    }
+                }
+            }
+            for (dlList in dlLists) {
+                if (dlList.isEmpty()) continue
+                val firstBytes = frameFetches[dlList[0].timeStr]!!.await() ?: continue
+                val frames = mutableListOf(StdFrame(firstBytes, dlList[0].epochMillis))
+                var frameCount = 1
+                forLoop@ for (i in 1 ..< dlList.size) {
+                    val frameBytes = frameFetches[dlList[i].timeStr]!!.await() ?: continue
+                    val earlierTs = dlList[i].epochMillis
+                    var laterTs = dlList[i - 1].epochMillis
+                    var interpolationCount = 0
+                    while (laterTs > earlierTs && interpolationCount < 12) {
+                        if (frameCount == targetFrameCount) {
+                            break@forLoop
+                        }
+                        interpolationCount++
+                        frameCount++
+                        laterTs -= FIFTEEN_MINS
+                        frames += StdFrame(frameBytes, laterTs)
                     }
-                    interpolationCount++
-                    frameCount++
-                    laterTs -= FIFTEEN_MINS
-                    frames += StdFrame(frameBytes, laterTs)
                 }
+                frames.reverse()
+                emit(StdSequence(frames))
             }
-            frames.reverse()
-            emit(StdSequence(frames))
+            // The last sequence may have filled up before using all the frames
+            frameFetches.values.forEach { it.cancel() }
         }
     }
 }
@@ -115,6 +115,11 @@ class MainFragmentModel : ViewModel() {
         animationLooper = null
         ensureAnimationLooper()
     }
+
+    override fun onCleared() {
+        animationLooper?.dispose()
+        animationLooper = null
+    }
 }
 
 class MainFragment : Fragment(), MenuProvider {
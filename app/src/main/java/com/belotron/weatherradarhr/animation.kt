@@ -19,11 +19,15 @@ package com.belotron.weatherradarhr
 import android.animation.ObjectAnimator
 import android.content.Context
 import android.graphics.Bitmap
+import android.graphics.Rect
+import android.graphics.drawable.BitmapDrawable
+import android.os.SystemClock
 import android.view.animation.LinearInterpolator
 import android.widget.SeekBar
 import androidx.lifecycle.viewModelScope
 import com.belotron.weatherradarhr.gifdecode.BitmapFreelists
 import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.Dispatchers.Default
 import kotlinx.coroutines.Dispatchers.IO
 import kotlinx.coroutines.Job
 import kotlinx.coroutines.asCoroutineDispatcher
@@ -46,6 +50,12 @@ private val singleThread = ThreadPoolExecutor(0, 1, 2, SECONDS, ArrayBlockingQue
 
 private val linear = LinearInterpolator()
 
+// Overview images take up a fraction of the screen, so they don't need the full resolution
+private const val OVERVIEW_SAMPLE_SIZE = 2
+
+// How often the looping animations check the frame memory budget
+private const val MEMORY_BUDGET_CHECK_PERIOD_MILLIS = 1_000L
+
 private lateinit var dateFormat: DateFormat
 private lateinit var timeFormat: DateFormat
 
@@ -68,6 +78,15 @@ class AnimationLooper(
         freezeTimeMillis: Int,
         seekbarVibrate: Boolean
     ) {
+        animators[positionInUI]?.takeIf { it.frameSequence === frameSequence }?.also { animator ->
+            // The loader found the animation unchanged, keep it running
+            animator.animationCoversMinutes = animationCoversMinutes
+            animator.rateMinsPerSec = rateMinsPerSec
+            animator.freezeTimeMillis = freezeTimeMillis
+            animator.seekbarVibrate = seekbarVibrate
+            ensureLooping(context)
+            return
+        }
         animatorJobs[positionInUI]?.cancel()
         animators[positionInUI]?.dispose()
         animators[positionInUI] = FrameAnimator(radarName, positionInUI, loader, vmodel, frameSequence).apply {
@@ -76,6 +95,7 @@ class AnimationLooper(
             this.freezeTimeMillis = freezeTimeMillis
             this.seekbarVibrate = seekbarVibrate
         }
+        enforceMemoryBudget()
         ensureLooping(context)
     }
 
@@ -118,6 +138,13 @@ class AnimationLooper(
         loopingJob = vmodel.viewModelScope.launch {
             oldLoopingJob?.join()
             oldLoopingJob = null
+            // Animations that aren't on screen become candidates for demotion
+            launch(Default) {
+                while (true) {
+                    FrameMemoryBudget.enforce()
+                    delay(MEMORY_BUDGET_CHECK_PERIOD_MILLIS)
+                }
+            }
             while (true) {
                 animatorJobs.forEach { it?.join() }
                 animators.withIndex()
@@ -127,6 +154,12 @@ class AnimationLooper(
         }
     }
 
+    private fun enforceMemoryBudget() {
+        vmodel.viewModelScope.launch(Default) {
+            FrameMemoryBudget.enforce()
+        }
+    }
+
     fun stop() {
         loopingJob?.cancel()
         animatorJobs.forEach { it?.cancel() }
@@ -171,9 +204,9 @@ class FrameAnimator(
     private val radarName: String,
     private val positionInUI: Int,
     private val frameSeqLoader: FrameSequenceLoader,
-    vmodel: MainFragmentModel,
-    frameSequence: FrameSequence<out Frame>,
-) {
+    private val vmodel: MainFragmentModel,
+    val frameSequence: FrameSequence<out Frame>,
+) : FrameMemoryBudget.Consumer {
     var animationCoversMinutes = 1
     var rateMinsPerSec = 20
     var freezeTimeMillis = 500
@@ -184,10 +217,34 @@ class FrameAnimator(
     private val imgBundles = vmodel.imgBundles
     private val frameDelayMillis get() =  1000 * frameSeqLoader.minutesPerFrame / rateMinsPerSec
     private val allocator = BitmapFreelists()
-    private val frameDecoder = frameSequence.intoDecoder(allocator)
+    // Guards the decoder, which gets replaced when the image enters or leaves full screen
+    private val decoderLock = Any()
+    @Volatile private var decoderSampleSize = desiredSampleSize()
+    private var frameDecoder = frameSequence.intoDecoder(allocator, decoderSampleSize)
+    private var inPlaceDecoder = frameDecoder as? InPlaceFrameDecoder<*>
+    // Set by demote(), makes the next decoding restore the frames and the decoder
+    private var isDemoted = false
+    private val dirtyRect = Rect()
     private var currFrame: Bitmap? = null
+    // The bitmap of a disposed in-place decoder, which the view may still be
+    // drawing. It stays allocated, and counted, until the view shows another one.
+    private var retiredBitmap: Bitmap? = null
     private var currFrameIndex = 0
     private var seekBarAnimator: ObjectAnimator? = null
+    private val visibleRect = Rect()
+
+    override val heldBytes: Long get() = when (frameSequence) {
+        is PaletteSequence -> frameSequence.sizeInBytes
+        is StdSequence -> frameSequence.sizeInBytes
+        else -> 0
+    }
+
+    @Volatile override var lastViewedAt = SystemClock.uptimeMillis()
+        private set
+
+    init {
+        FrameMemoryBudget.register(this)
+    }
 
     private fun correctFrameCount() = frameSeqLoader.correctFrameCount(animationCoversMinutes)
 
@@ -242,26 +299,93 @@ class FrameAnimator(
             vibrate()
         }
         val newFrame = suspendDecodeFrame(targetIndex, singleThread)
+        debug {
+            val replayCount = synchronized (decoderLock) { frameDecoder.lastSeekReplayCount }
+            "$radarName: seek to frame $targetIndex composited $replayCount frames before it"
+        }
         showFrame(newFrame, animationProgress)
         updateAgeText()
     }
 
     fun dispose() {
+        FrameMemoryBudget.unregister(this)
+        synchronized (decoderLock) {
+            inPlaceDecoder?.dispose()
+            retiredBitmap = null
+        }
         allocator.dispose()
+        // Unless the loader got newer frames since, nothing else will play the ones it keeps
+        frameSeqLoader.releaseRetained(frameSequence)
+    }
+
+    override fun demote() {
+        synchronized (decoderLock) {
+            if (isDemoted) {
+                return
+            }
+            retireInPlaceDecoder()
+            inPlaceDecoder = null
+            isDemoted = true
+            allocator.trim()
+            (frameSequence as? PaletteSequence)?.compact()
+        }
     }
 
-    private fun showFrame(newFrame: Bitmap, animationProgress: Int) {
+    override fun toString() = "FrameAnimator($radarName)"
+
+    // newFrame is null with an in-place decoder, which already holds the frame
+    private fun showFrame(newFrame: Bitmap?, animationProgress: Int) {
+        if (isOnScreen()) {
+            lastViewedAt = SystemClock.uptimeMillis()
+        }
         with (imgBundle) {
-            imgView?.setImageBitmap(newFrame)
+            if (newFrame != null) {
+                imgView?.setImageBitmap(newFrame.withSampledDensity())
+                synchronized (decoderLock) {
+                    releaseRetiredBitmap()
+                }
+            } else {
+                showInPlaceFrame()
+            }
             this.animationProgress = animationProgress
             if (status == ImageBundle.Status.LOADING_COMPLETE) {
                 status = ImageBundle.Status.SHOWING
             }
         }
-        currFrame?.dispose()
-        currFrame = newFrame
+        if (newFrame != null) {
+            currFrame?.dispose()
+            currFrame = newFrame
+        }
+    }
+
+    private fun ImageBundle.showInPlaceFrame() {
+        val imgView = imgView ?: return
+        val bitmap = synchronized (decoderLock) {
+            inPlaceDecoder?.updateBitmap(dirtyRect)
+        } ?: return
+        if ((imgView.drawable as? BitmapDrawable)?.bitmap !== bitmap) {
+            imgView.setImageBitmap(bitmap.withSampledDensity())
+            synchronized (decoderLock) {
+                releaseRetiredBitmap()
+            }
+        } else if (!dirtyRect.isEmpty) {
+            // With hardware rendering the platform ignores the dirty area and redraws the view
+            invalidateImgView()
+        }
+    }
+
+    // In the overview, an image can be scrolled out of view while it's animating
+    private fun isOnScreen() = imgBundle.imgView?.let { it.isShown && it.getLocalVisibleRect(visibleRect) } ?: false
+
+    // Makes a scaled-down bitmap report the same intrinsic size as the full-size
+    // one, so the image keeps its layout and the mapping to map coordinates
+    private fun Bitmap.withSampledDensity() = apply {
+        imgBundle.imgView?.resources?.displayMetrics?.also { density = it.densityDpi / decoderSampleSize }
     }
 
+    private fun desiredSampleSize() =
+        if (vmodel.indexOfImgInFullScreen == positionInUI) 1 else OVERVIEW_SAMPLE_SIZE
+
     private fun updateSeekBarThumb(frameIndex: Int, timestamp: Long) {
         imgBundle.seekBar?.apply {
             thumbProgress = toProgress(frameIndex)
@@ -291,14 +415,69 @@ class FrameAnimator(
     }
 
     private fun timestamp(correctFrameIndex: Int) =
-            frameDecoder.sequence.frames[adjustedFrameIndex(correctFrameIndex)].timestamp
-
-    private suspend fun suspendDecodeFrame(correctFrameIndex: Int, coroCtx: CoroutineDispatcher = IO) =
-            withContext(coroCtx) {
-                synchronized (frameDecoder) {
-                    frameDecoder.getBitmap(adjustedFrameIndex(correctFrameIndex))
+            frameSequence.frames[adjustedFrameIndex(correctFrameIndex)].timestamp
+
+    // Returns null with an in-place decoder, see showFrame(), or while demoted and out of view
+    private suspend fun suspendDecodeFrame(correctFrameIndex: Int, coroCtx: CoroutineDispatcher = IO): Bitmap? {
+        val sampleSize = desiredSampleSize()
+        val isOnScreen = isOnScreen()
+        return withContext(coroCtx) {
+            synchronized (decoderLock) {
+                if (isDemoted && !isOnScreen) {
+                    // Stay demoted until scrolled into view, there's no frame to show meanwhile
+                    return@withContext null
+                }
+                if (isDemoted || sampleSize != decoderSampleSize) {
+                    replaceDecoder(sampleSize)
+                }
+                val frameIndex = adjustedFrameIndex(correctFrameIndex)
+                val inPlaceDecoder = inPlaceDecoder
+                if (inPlaceDecoder != null) {
+                    inPlaceDecoder.gotoFrame(frameIndex)
+                    null
+                } else {
+                    frameDecoder.getBitmap(frameIndex)
                 }
             }
+        }
+    }
+
+    private fun replaceDecoder(sampleSize: Int) {
+        info { "$radarName: creating decoder with sample size $sampleSize" }
+        retireInPlaceDecoder()
+        if (isDemoted) {
+            (frameSequence as? PaletteSequence)?.uncompact()
+            isDemoted = false
+        }
+        frameDecoder = frameSequence.intoDecoder(allocator, sampleSize)
+        inPlaceDecoder = frameDecoder as? InPlaceFrameDecoder<*>
+        decoderSampleSize = sampleSize
+        // Back from demotion, the new decoder keeps painting into the bitmap on screen
+        retiredBitmap?.takeIf { inPlaceDecoder?.reuseBitmap(it) == true }?.also { retiredBitmap = null }
+    }
+
+    // Disposes the in-place decoder, but keeps its bitmap, which the view may be drawing.
+    // Call with the decoderLock held.
+    private fun retireInPlaceDecoder() {
+        val decoder = inPlaceDecoder ?: return
+        decoder.detachBitmap()?.also { bitmap ->
+            if (retiredBitmap == null) {
+                retiredBitmap = bitmap
+            } else {
+                // The view still shows the bitmap retired earlier, this one never got to it
+                allocator.release(bitmap)
+            }
+        }
+        decoder.dispose()
+    }
+
+    // Call with the decoderLock held, once the view no longer shows the retired bitmap
+    private fun releaseRetiredBitmap() {
+        retiredBitmap?.also {
+            retiredBitmap = null
+            allocator.release(it)
+        }
+    }
 
     private fun Bitmap.dispose() = allocator.release(this)
 
@@ -308,7 +487,7 @@ class FrameAnimator(
     }
 
     private fun adjustedFrameIndex(correctFrameIndex: Int): Int {
-        return max(0, correctFrameIndex - (correctFrameCount() - frameDecoder.frameCount))
+        return max(0, correctFrameIndex - (correctFrameCount() - frameSequence.frames.size))
     }
 
     private fun toProgress(frameIndex: Int) = correctFrameCount().let { frameCount ->
@@ -72,26 +72,29 @@ enum class AnimationSource(
     val mapShape: MapProjection,
     val frameSequenceLoader: FrameSequenceLoader
 ) {
-    HR_KOMPOZIT("DHMZ Kompozit", hrKompozitShape, hrSequenceLoader("kompozit", HrOcr::ocrTimestampKompozit)),
+    HR_KOMPOZIT("DHMZ Kompozit", hrKompozitShape, hrKompozitSequenceLoader()),
     AT_ZAMG("met.no", metnoShape, MetNoSatelliteLoader()),
     SLO_ARSO("ARSO", sloShape, sloSequenceLoader()),
-    HR_GRADISTE("DHMZ Gradište", hrGradisteShape, hrSequenceLoader("gradiste", HrOcr::ocrTimestampSingle)),
-    HR_BILOGORA("DHMZ Bilogora", hrBilogoraShape, hrSequenceLoader("bilogora", HrOcr::ocrTimestampSingle)),
-    HR_PUNTIJARKA("DHMZ Puntijarka", hrPuntijarkaShape, hrSequenceLoader("puntijarka", HrOcr::ocrTimestampSingle)),
-    HR_GOLI("DHMZ Goli", hrGoliShape, hrSequenceLoader("goli", HrOcr::ocrTimestampSingle)),
-    HR_DEBELJAK("DHMZ Debeljak", hrDebeljakShape, hrSequenceLoader("debeljak", HrOcr::ocrTimestampSingle)),
-    HR_ULJENJE("DHMZ Uljenje", hrUljenjeShape, hrSequenceLoader("uljenje", HrOcr::ocrTimestampSingle)),
+    HR_GRADISTE("DHMZ Gradište", hrGradisteShape, hrSingleSequenceLoader("gradiste")),
+    HR_BILOGORA("DHMZ Bilogora", hrBilogoraShape, hrSingleSequenceLoader("bilogora")),
+    HR_PUNTIJARKA("DHMZ Puntijarka", hrPuntijarkaShape, hrSingleSequenceLoader("puntijarka")),
+    HR_GOLI("DHMZ Goli", hrGoliShape, hrSingleSequenceLoader("goli")),
+    HR_DEBELJAK("DHMZ Debeljak", hrDebeljakShape, hrSingleSequenceLoader("debeljak")),
+    HR_ULJENJE("DHMZ Uljenje", hrUljenjeShape, hrSingleSequenceLoader("uljenje")),
 }
 
 class MyApplication : Application() {
     override fun onCreate() {
         super.onCreate()
         appContext = this
+        configureConnectionPool()
+        initHttpCache()
         val masterJob = Job()
         appCoroScope = object : CoroutineScope {
             override val coroutineContext get() = Dispatchers.Main.immediate + masterJob
         }
         privateLogEnabled = mainPrefs.widgetLogEnabled
+        FrameMemoryBudget.init(this)
     }
 }
 
@@ -17,25 +17,30 @@
 package com.belotron.weatherradarhr.gifdecode
 
 import android.graphics.Bitmap
+import com.belotron.weatherradarhr.FrameMemoryBudget
 import com.belotron.weatherradarhr.debug
 import java.util.*
+import java.util.concurrent.atomic.AtomicLong
 import androidx.core.graphics.createBitmap
 
 private val emptyByteArray = ByteArray(0)
 private val emptyIntArray = IntArray(0)
 
+// Reports the memory it allocates to FrameMemoryBudget
 class BitmapFreelists : Allocator {
 
     private val bitmapQueues = HashMap<Pair<Int, Int>, ArrayDeque<Bitmap>>()
     private val byteArrayQueues = HashMap<Int, Queue<ByteArray>>()
     private val intArrayQueues = HashMap<Int, Queue<IntArray>>()
+    // Bytes held by everything this allocator created, whether in use or in a freelist
+    private val allocatedBytes = AtomicLong()
 
     override fun obtain(width: Int, height: Int, config: Bitmap.Config): Bitmap = synchronized (bitmapQueues) {
         debug { "Obtain $width x $height bitmap" }
         bitmapQueues[Pair(width, height)]
                 ?.poll()
                 ?.apply { setConfig(config) }
-                ?: createBitmap(width, height, config)
+                ?: createBitmap(width, height, config).also { allocated(it.allocationByteCount.toLong()) }
     }
 
     override fun release(bitmap: Bitmap): Unit = synchronized(bitmapQueues) {
@@ -51,7 +56,7 @@ class BitmapFreelists : Allocator {
     override fun obtainByteArray(size: Int): ByteArray = synchronized(byteArrayQueues) {
         debug { "Obtain $size bytes" }
         if (size == 0) emptyByteArray
-        else byteArrayQueues[size]?.poll() ?: ByteArray(size)
+        else byteArrayQueues[size]?.poll() ?: ByteArray(size).also { allocated(size.toLong()) }
     }
 
     override fun release(bytes: ByteArray): Unit = synchronized(byteArrayQueues) {
@@ -66,7 +71,7 @@ class BitmapFreelists : Allocator {
     override fun obtainIntArray(size: Int): IntArray = synchronized(intArrayQueues) {
         debug { "Obtain $size ints" }
         if (size == 0) emptyIntArray
-        else intArrayQueues[size]?.poll() ?: IntArray(size)
+        else intArrayQueues[size]?.poll() ?: IntArray(size).also { allocated(4L * size) }
     }
 
     override fun release(array: IntArray): Unit = synchronized(intArrayQueues)  {
@@ -78,6 +83,35 @@ class BitmapFreelists : Allocator {
         freelist.add(array)
     }
 
+    /**
+     * Drops the objects in the freelists and stops accounting for them. The
+     * objects in use stay accounted for.
+     */
+    fun trim() {
+        var freedBytes = 0L
+        synchronized(bitmapQueues) {
+            bitmapQueues.values.forEach { queue -> queue.forEach { freedBytes += it.allocationByteCount } }
+            bitmapQueues.clear()
+        }
+        synchronized(byteArrayQueues) {
+            byteArrayQueues.values.forEach { queue -> queue.forEach { freedBytes += it.size } }
+            byteArrayQueues.clear()
+        }
+        synchronized(intArrayQueues) {
+            intArrayQueues.values.forEach { queue -> queue.forEach { freedBytes += 4L * it.size } }
+            intArrayQueues.clear()
+        }
+        allocated(-freedBytes)
+    }
+
+    // Drops the freelists and stops accounting for everything this allocator created
     override fun dispose() {
+        trim()
+        allocated(-allocatedBytes.get())
+    }
+
+    private fun allocated(bytes: Long) {
+        allocatedBytes.addAndGet(bytes)
+        FrameMemoryBudget.allocated(bytes)
     }
 }
@@ -52,8 +52,9 @@ import com.belotron.weatherradarhr.FrameDecoder;
 import com.belotron.weatherradarhr.ImageDecodeException;
 import kotlin.jvm.functions.Function1;
 
-import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Reads frame data from a GIF image source and decodes it into individual
@@ -74,16 +75,23 @@ import java.util.Arrays;
 public class GifDecoder implements FrameDecoder<GifFrame>
 {
 
+    private static final int MASK_INT_LOWEST_BYTE = 0x000000FF;
+
+    @ColorInt private static final int COLOR_TRANSPARENT_BLACK = 0x00000000;
+
     /**
-     * Dictionary size for decoding LZW compressed data.
+     * Default number of frames between two canvas checkpoints. Any frame can be
+     * reconstructed with at most this many composites.
      */
-    private static final int DICT_SIZE = 4 * 1024;
-
-    private static final int NULL_CODE = -1;
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 8;
 
-    private static final int MASK_INT_LOWEST_BYTE = 0x000000FF;
+    /**
+     * Checkpoint interval for decoders that only ever go through the frames in
+     * order. They only have the checkpoints given to {@link #seedCheckpoint}.
+     */
+    public static final int NO_CHECKPOINTS = 0;
 
-    @ColorInt private static final int COLOR_TRANSPARENT_BLACK = 0x00000000;
+    private static final int NO_FRAME = -1;
 
     /**
      * Active color table. Maximum size is 256, see GifHeaderParser.readColorTable
@@ -97,29 +105,54 @@ public class GifDecoder implements FrameDecoder<GifFrame>
 
     private final Allocator allocator;
 
-    // LZW decoder working arrays.
-    private final byte[] block = new byte[256];
-    private final short[] prefix = new short[DICT_SIZE];
-    private final byte[] suffix = new byte[DICT_SIZE];
-    private final byte[] pixelStack = new byte[DICT_SIZE + 1];
+    /**
+     * LZW decoders for threads that expand frames in parallel, see {@link #decodePixelCodes}.
+     */
+    private static final ThreadLocal<LzwDecoder> workerLzwDecoders = ThreadLocal.withInitial(LzwDecoder::new);
 
+    private final LzwDecoder lzwDecoder = new LzwDecoder();
     private final byte[] pixelCodes;
     @ColorInt private final int[] outPixels;
+    // Canvas holding just the top rows of the image, see assignTimestampFromTopRows()
+    @ColorInt @Nullable private int[] topRowsPixels;
+    private int currentTopRowsFrameIndex = NO_FRAME;
     @Nullable private Boolean isFirstFrameTransparent;
 
     private GifSequence gifSequence;
     private final Function1<? super Pixels, Long> ocrTimestamp;
 
+    // Canvas snapshots, keyed by the index of the frame whose image they hold.
+    private final Map<Integer, int[]> checkpoints = new HashMap<>();
+    private final int checkpointInterval;
+    // Index of the frame whose image is currently in outPixels.
+    private int currentFrameIndex = NO_FRAME;
+    private int lastSeekReplayCount;
+
+    // The output image takes every sampleSize-th pixel of every sampleSize-th
+    // row. outPixels, the checkpoints and the bitmaps are all of the output size.
+    private final int sampleSize;
+    private final int outWidth;
+    private final int outHeight;
+
     public GifDecoder(
         @NonNull Allocator allocator,
         @NonNull GifSequence gifSequence,
-        @Nullable Function1<? super Pixels, Long> ocrTimestamp
+        @Nullable Function1<? super Pixels, Long> ocrTimestamp,
+        int checkpointInterval,
+        int sampleSize
     ) {
+        if (sampleSize < 1) {
+            throw new IllegalArgumentException("sampleSize must be positive, but is " + sampleSize);
+        }
         this.allocator = allocator;
         this.gifSequence = gifSequence;
         this.ocrTimestamp = ocrTimestamp;
+        this.checkpointInterval = checkpointInterval;
+        this.sampleSize = sampleSize;
+        outWidth = sampledSize(gifSequence.width, sampleSize);
+        outHeight = sampledSize(gifSequence.height, sampleSize);
         pixelCodes = allocator.obtainByteArray(gifSequence.width * gifSequence.height);
-        outPixels = allocator.obtainIntArray(gifSequence.width * gifSequence.height);
+        outPixels = allocator.obtainIntArray(outWidth * outHeight);
     }
 
     @NonNull @Override public GifSequence getSequence() {
@@ -128,15 +161,55 @@ public class GifDecoder implements FrameDecoder<GifFrame>
 
     @NonNull @Override
     public Bitmap getBitmap(int frameIndex) {
-        gotoAndDecode(frameIndex);
+        gotoAndDecode(frameIndex, null);
         return outPixelsToBitmap();
     }
 
+    /**
+     * Same as {@link #getBitmap(int)}, but uses the given pixel codes, obtained
+     * from {@link #decodePixelCodes}, instead of decoding the frame's LZW data.
+     */
+    @NonNull
+    public Bitmap getBitmap(int frameIndex, @NonNull byte[] pixelCodes) {
+        gotoAndDecode(frameIndex, pixelCodes);
+        return outPixelsToBitmap();
+    }
+
+    /**
+     * Same as {@link #getBitmap(int, byte[])}, but returns the ARGB pixels of
+     * the frame instead of a bitmap. The returned array belongs to this decoder
+     * and gets overwritten by the next call.
+     */
+    @NonNull @ColorInt
+    public int[] getPixels(int frameIndex, @NonNull byte[] pixelCodes) {
+        gotoAndDecode(frameIndex, pixelCodes);
+        return outPixels;
+    }
+
+    /**
+     * Decodes the LZW data of the given frame into a newly obtained array of
+     * color-table indices, which the caller passes to
+     * {@link #getBitmap(int, byte[])} and then releases to the
+     * allocator. Doesn't touch the state of this decoder and can be called from
+     * several threads at once, each using its own LZW working arrays.
+     */
+    @NonNull
+    public byte[] decodePixelCodes(int frameIndex) {
+        byte[] codes = allocator.obtainByteArray(gifSequence.width * gifSequence.height);
+        try {
+            workerLzwDecoders.get().decode(gifSequence.getFrames().get(frameIndex), codes, Integer.MAX_VALUE);
+        } catch (Exception e) {
+            allocator.release(codes);
+            throw e instanceof ImageDecodeException ? (ImageDecodeException) e : new ImageDecodeException(e);
+        }
+        return codes;
+    }
+
     public void assignTimestamp(int frameIndex) {
-        gotoAndDecode(frameIndex);
+        gotoAndDecode(frameIndex, null);
         gifSequence.getFrames()
                    .get(frameIndex)
-                   .setTimestamp(ocrTimestamp.invoke(new IntArrayPixels(outPixels, gifSequence.width)));
+                   .setTimestamp(ocrTimestamp.invoke(new IntArrayPixels(outPixels, outWidth)));
     }
 
     @NonNull
@@ -145,14 +218,119 @@ public class GifDecoder implements FrameDecoder<GifFrame>
         return outPixelsToBitmap();
     }
 
+    /**
+     * OCRs the timestamp of the given frame by decoding just the top
+     * {@code rowLimit} rows of the image, which must hold the timestamp.
+     * Stops the LZW decoding of each frame as soon as it has produced those
+     * rows. Works best when the frames are requested in order.
+     */
+    public void assignTimestampFromTopRows(int frameIndex, int rowLimit) {
+        if (frameIndex < 0 || frameIndex >= gifSequence.getFrames().size()) {
+            throw new ImageDecodeException("Asked to decode frame " + frameIndex + ", but frame count is " +
+                gifSequence.getFrames().size());
+        }
+        int width = gifSequence.width;
+        rowLimit = Math.min(rowLimit, gifSequence.height);
+        if (topRowsPixels == null || topRowsPixels.length != width * rowLimit) {
+            if (topRowsPixels != null) {
+                allocator.release(topRowsPixels);
+            }
+            topRowsPixels = allocator.obtainIntArray(width * rowLimit);
+            currentTopRowsFrameIndex = NO_FRAME;
+        }
+        try {
+            int startIndex = frameIndex;
+            while (startIndex != currentTopRowsFrameIndex + 1 || currentTopRowsFrameIndex == NO_FRAME) {
+                if (startIndex == 0) {
+                    Arrays.fill(topRowsPixels, COLOR_TRANSPARENT_BLACK);
+                    break;
+                }
+                if (coversWholeCanvas(gifSequence.getFrames().get(startIndex))) {
+                    break;
+                }
+                startIndex--;
+            }
+            for (int i = startIndex; i <= frameIndex; i++) {
+                decodeTopRows(i, rowLimit);
+            }
+        } catch (ImageDecodeException e) {
+            currentTopRowsFrameIndex = NO_FRAME;
+            throw e;
+        } catch (Exception e) {
+            currentTopRowsFrameIndex = NO_FRAME;
+            throw new ImageDecodeException(e);
+        }
+        gifSequence.getFrames()
+                   .get(frameIndex)
+                   .setTimestamp(ocrTimestamp.invoke(new IntArrayPixels(topRowsPixels, width)));
+    }
+
+    /**
+     * Returns a copy of the canvas holding the image of the given frame. It can
+     * seed a checkpoint of a decoder of a later version of the animation, see
+     * {@link #seedCheckpoint}.
+     */
+    @NonNull @ColorInt
+    public int[] copyCanvas(int frameIndex) {
+        gotoAndDecode(frameIndex, null);
+        return outPixels.clone();
+    }
+
+    /**
+     * Makes the given canvas the checkpoint of the given frame, so decoding
+     * the frames after it starts from there instead of from the first frame.
+     * The canvas must hold the image of the frame, e.g. copied by
+     * {@link #copyCanvas} from a decoder of an earlier version of the animation
+     * that had the same frame, and be of the output size.
+     */
+    public void seedCheckpoint(int frameIndex, @NonNull @ColorInt int[] canvas) {
+        if (canvas.length != outPixels.length) {
+            throw new IllegalArgumentException(
+                "Canvas has " + canvas.length + " pixels, but the output image has " + outPixels.length);
+        }
+        int[] checkpoint = checkpoints.get(frameIndex);
+        if (checkpoint == null) {
+            checkpoint = allocator.obtainIntArray(outPixels.length);
+            checkpoints.put(frameIndex, checkpoint);
+        }
+        System.arraycopy(canvas, 0, checkpoint, 0, canvas.length);
+    }
+
+    /**
+     * Returns the number of frames that had to be composited, in addition to the
+     * requested one, to reconstruct the frame requested in the last call.
+     */
+    @Override
+    public int getLastSeekReplayCount() {
+        return lastSeekReplayCount;
+    }
+
+    /**
+     * Releases the decoder's working arrays back to the allocator. The decoder
+     * must not be used afterwards.
+     */
+    public void dispose() {
+        for (int[] checkpoint : checkpoints.values()) {
+            allocator.release(checkpoint);
+        }
+        checkpoints.clear();
+        if (topRowsPixels != null) {
+            allocator.release(topRowsPixels);
+            topRowsPixels = null;
+        }
+        allocator.release(pixelCodes);
+        allocator.release(outPixels);
+        currentFrameIndex = NO_FRAME;
+    }
+
     @NonNull
     private Bitmap outPixelsToBitmap() {
         Bitmap result = obtainBitmap();
-        result.setPixels(outPixels, 0, gifSequence.width, 0, 0, gifSequence.width, gifSequence.height);
+        result.setPixels(outPixels, 0, outWidth, 0, 0, outWidth, outHeight);
         return result;
     }
 
-    private void gotoAndDecode(int frameIndex) {
+    private void gotoAndDecode(int frameIndex, @Nullable byte[] targetPixelCodes) {
         if (frameIndex < 0) {
             throw new ImageDecodeException("Asked to decode frame " + frameIndex);
         }
@@ -160,40 +338,139 @@ public class GifDecoder implements FrameDecoder<GifFrame>
             throw new ImageDecodeException("Asked to decode frame " + frameIndex + ", but frame count is " +
                 gifSequence.getFrames().size());
         }
+        if (frameIndex == currentFrameIndex) {
+            lastSeekReplayCount = 0;
+            return;
+        }
         try {
-            GifFrame currentFrame = gifSequence.getFrames().get(frameIndex);
-            int previousIndex = frameIndex - 1;
-            GifFrame previousFrame = previousIndex >= 0 ? gifSequence.getFrames().get(previousIndex) : null;
-
-            // Set the appropriate color table.
-            act = currentFrame.lct != null ? currentFrame.lct : gifSequence.gct;
-            if (act == null) {
-                // No color table defined.
-                throw new ImageDecodeException("No valid color table found for frame #" + frameIndex);
+            int startIndex = rewindTo(frameIndex);
+            for (int i = startIndex; i <= frameIndex; i++) {
+                decodeFrame(i, i == frameIndex ? targetPixelCodes : null);
             }
-
-            // Reset the transparent pixel in the color table
-            if (currentFrame.transparency) {
-                // Prepare local copy of color table ("pct = act"), see #1068
-                System.arraycopy(act, 0, pct, 0, act.length);
-                // Forget about act reference from shared header object, use copied version
-                act = pct;
-                // Set transparent color if specified.
-                act[currentFrame.transIndex] = COLOR_TRANSPARENT_BLACK;
-            }
-            setPixels(currentFrame, previousFrame);
+            lastSeekReplayCount = frameIndex - startIndex;
         } catch (ImageDecodeException e) {
+            currentFrameIndex = NO_FRAME;
             throw e;
         } catch (Exception e) {
+            currentFrameIndex = NO_FRAME;
             throw new ImageDecodeException(e);
         }
     }
 
+    /**
+     * Prepares the canvas for reconstructing the given frame and returns the
+     * index of the first frame to composite onto it. Walks back from the target
+     * frame and stops at the closest frame that can be composited without
+     * replaying any earlier ones: the frame following the current one, a
+     * frame following a checkpoint, or a frame that covers the whole canvas.
+     */
+    private int rewindTo(int frameIndex) {
+        int startIndex = frameIndex;
+        while (true) {
+            if (currentFrameIndex != NO_FRAME && startIndex == currentFrameIndex + 1) {
+                return startIndex;
+            }
+            int[] checkpoint = checkpoints.get(startIndex - 1);
+            if (checkpoint != null) {
+                System.arraycopy(checkpoint, 0, outPixels, 0, outPixels.length);
+                return startIndex;
+            }
+            if (startIndex == 0) {
+                Arrays.fill(outPixels, COLOR_TRANSPARENT_BLACK);
+                return startIndex;
+            }
+            if (coversWholeCanvas(gifSequence.getFrames().get(startIndex))) {
+                return startIndex;
+            }
+            startIndex--;
+        }
+    }
+
+    private void decodeFrame(int frameIndex, @Nullable byte[] predecodedPixelCodes) {
+        GifFrame currentFrame = gifSequence.getFrames().get(frameIndex);
+        int previousIndex = frameIndex - 1;
+        GifFrame previousFrame = previousIndex >= 0 ? gifSequence.getFrames().get(previousIndex) : null;
+        selectColorTable(currentFrame);
+        // Decode pixels for this frame into pixelCodes, unless they're already decoded.
+        byte[] pixelCodes = predecodedPixelCodes;
+        if (pixelCodes == null) {
+            pixelCodes = this.pixelCodes;
+            lzwDecoder.decode(currentFrame, pixelCodes, Integer.MAX_VALUE);
+        }
+        setPixels(currentFrame, previousFrame, pixelCodes, outPixels, outHeight, sampleSize);
+        currentFrameIndex = frameIndex;
+        saveCheckpointIfDue(currentFrame);
+    }
+
+    private void decodeTopRows(int frameIndex, int rowLimit) {
+        GifFrame currentFrame = gifSequence.getFrames().get(frameIndex);
+        int previousIndex = frameIndex - 1;
+        GifFrame previousFrame = previousIndex >= 0 ? gifSequence.getFrames().get(previousIndex) : null;
+        selectColorTable(currentFrame);
+        // An interlaced frame stores its rows out of order, so it must be decoded in full.
+        int rowsToDecode = currentFrame.interlace
+            ? currentFrame.ih
+            : Math.max(0, Math.min(currentFrame.ih, rowLimit - currentFrame.iy));
+        byte[] pixelCodes = null;
+        if (rowsToDecode > 0) {
+            pixelCodes = this.pixelCodes;
+            lzwDecoder.decode(currentFrame, pixelCodes, rowsToDecode * currentFrame.iw);
+        }
+        setPixels(currentFrame, previousFrame, pixelCodes, topRowsPixels, rowLimit, 1);
+        currentTopRowsFrameIndex = frameIndex;
+    }
+
+    private void selectColorTable(@NonNull GifFrame currentFrame) {
+        // Set the appropriate color table.
+        act = currentFrame.lct != null ? currentFrame.lct : gifSequence.gct;
+        if (act == null) {
+            // No color table defined.
+            throw new ImageDecodeException("No valid color table found for frame #" + currentFrame.index);
+        }
+
+        // Reset the transparent pixel in the color table
+        if (currentFrame.transparency) {
+            // Prepare local copy of color table ("pct = act"), see #1068
+            System.arraycopy(act, 0, pct, 0, act.length);
+            // Forget about act reference from shared header object, use copied version
+            act = pct;
+            // Set transparent color if specified.
+            act[currentFrame.transIndex] = COLOR_TRANSPARENT_BLACK;
+        }
+    }
+
+    private void saveCheckpointIfDue(@NonNull GifFrame frame) {
+        if (checkpointInterval <= 0 || frame.index % checkpointInterval != 0
+            || checkpoints.get(frame.index) != null
+            || coversWholeCanvas(frame)
+        ) {
+            return;
+        }
+        int[] checkpoint = allocator.obtainIntArray(outPixels.length);
+        System.arraycopy(outPixels, 0, checkpoint, 0, outPixels.length);
+        checkpoints.put(frame.index, checkpoint);
+    }
+
+    /**
+     * A frame that paints every pixel of the canvas doesn't depend on any
+     * previous frame, so decoding can start from it.
+     */
+    private boolean coversWholeCanvas(@NonNull GifFrame frame) {
+        return !frame.transparency && frame.ix == 0 && frame.iy == 0
+            && frame.iw == gifSequence.width && frame.ih == gifSequence.height;
+    }
+
     /**
      * Creates new frame image from current data (and previous frames as specified by their
-     * disposal codes).
+     * disposal codes). Paints only the top {@code canvasRows} rows of the image into
+     * {@code canvas}. {@code pixelCodes} may be null if the frame doesn't reach into these rows.
+     * The canvas holds the image scaled down by {@code canvasSampleSize}, and
+     * {@code canvasRows} counts its scaled-down rows.
      */
-    private void setPixels(@NonNull GifFrame currentFrame, @Nullable GifFrame previousFrame) {
+    private void setPixels(
+        @NonNull GifFrame currentFrame, @Nullable GifFrame previousFrame,
+        @Nullable byte[] pixelCodes, @NonNull int[] canvas, int canvasRows, int canvasSampleSize
+    ) {
         if (previousFrame != null) {
             // Fill in starting image contents based on last image's dispose code.
             // We don't need to do anything for DISPOSAL_NONE, if it has the correct pixels so will our
@@ -213,32 +490,32 @@ public class GifDecoder implements FrameDecoder<GifFrame>
                     isFirstFrameTransparent = true;
                 }
                 // The area used by the graphic must be restored to the background color.
-                int downsampledIW = previousFrame.iw;
-                int gifWidth = gifSequence.width;
-                int topLeft = previousFrame.iy * gifWidth + previousFrame.ix;
-                int bottomLeft = topLeft + previousFrame.ih * gifWidth;
-                // Final location of blended pixels.
-                int[] outPixels = this.outPixels;
-                for (int left = topLeft; left < bottomLeft; left += gifWidth) {
-                    int right = left + downsampledIW;
-                    for (int pointer = left; pointer < right; pointer++) {
-                        outPixels[pointer] = c;
-                    }
+                int canvasWidth = sampledSize(gifSequence.width, canvasSampleSize);
+                int left = sampledSize(previousFrame.ix, canvasSampleSize);
+                int right = Math.min(sampledSize(previousFrame.ix + previousFrame.iw, canvasSampleSize), canvasWidth);
+                int top = sampledSize(previousFrame.iy, canvasSampleSize);
+                int bottom = Math.min(sampledSize(previousFrame.iy + previousFrame.ih, canvasSampleSize), canvasRows);
+                for (int y = top; y < bottom; y++) {
+                    Arrays.fill(canvas, y * canvasWidth + left, y * canvasWidth + right, c);
                 }
             }
         }
 
-        // Decode pixels for this frame into mainPixels.
-        decodeBitmapData(currentFrame);
-
-        if (currentFrame.interlace) {
-            copyCopyIntoScratchRobust(currentFrame);
+        if (pixelCodes == null) {
+            return;
+        }
+        if (canvasSampleSize > 1) {
+            copyIntoScratchSampled(currentFrame, pixelCodes, canvas, canvasRows, canvasSampleSize);
+        } else if (currentFrame.interlace) {
+            copyCopyIntoScratchRobust(currentFrame, pixelCodes, canvas, canvasRows);
         } else {
-            copyIntoScratchFast(currentFrame);
+            copyIntoScratchFast(currentFrame, pixelCodes, canvas, canvasRows);
         }
     }
 
-    private void copyIntoScratchFast(@NonNull GifFrame frame) {
+    private void copyIntoScratchFast(
+        @NonNull GifFrame frame, @NonNull byte[] pixelCodes, @NonNull int[] canvas, int canvasRows
+    ) {
         int ix = frame.ix;
         int iy = frame.iy;
         int ih = frame.ih;
@@ -248,7 +525,7 @@ public class GifDecoder implements FrameDecoder<GifFrame>
         int width = this.gifSequence.width;
         int[] act = this.act;
         byte transparentColorIndex = -1;
-        for (int i = 0; i < ih; i++) {
+        for (int i = 0; i < ih && i + iy < canvasRows; i++) {
             int line = i + iy;
             int k = line * width;
             // Start of line in dest.
@@ -263,12 +540,12 @@ public class GifDecoder implements FrameDecoder<GifFrame>
             int sx = i * frame.iw;
 
             while (dx < dlim) {
-                byte byteCurrentColorIndex = this.pixelCodes[sx];
+                byte byteCurrentColorIndex = pixelCodes[sx];
                 int currentColorIndex = toUnsignedInt(byteCurrentColorIndex);
                 if (currentColorIndex != transparentColorIndex) {
                     int color = act[currentColorIndex];
                     if (color != COLOR_TRANSPARENT_BLACK) {
-                        outPixels[dx] = color;
+                        canvas[dx] = color;
                     } else {
                         transparentColorIndex = byteCurrentColorIndex;
                     }
@@ -281,7 +558,9 @@ public class GifDecoder implements FrameDecoder<GifFrame>
         isFirstFrameTransparent = isFirstFrameTransparent == null && isFirstFrame && transparentColorIndex != -1;
     }
 
-    private void copyCopyIntoScratchRobust(@NonNull GifFrame frame) {
+    private void copyCopyIntoScratchRobust(
+        @NonNull GifFrame frame, @NonNull byte[] pixelCodes, @NonNull int[] canvas, int canvasRows
+    ) {
         // Copy each source line to the appropriate place in the destination.
         int pass = 1;
         int inc = 8;
@@ -293,12 +572,12 @@ public class GifDecoder implements FrameDecoder<GifFrame>
         int iy = frame.iy;
         int ih = frame.ih;
         int iw = frame.iw;
-        int gifHeight = gifSequence.height;
         int gifWidth = gifSequence.width;
         for (int i = 0; i < ih; i++) {
             int line = i;
             if (frame.interlace) {
-                if (iline >= ih) {
+                // A frame shorter than 5 lines has no lines in the second pass
+                while (iline >= ih) {
                     pass++;
                     switch (pass) {
                         case 2:
@@ -320,7 +599,7 @@ public class GifDecoder implements FrameDecoder<GifFrame>
                 iline += inc;
             }
             line += iy;
-            if (line < gifHeight) {
+            if (line < canvasRows) {
                 int k = line * gifWidth;
                 // Start of line in dest.
                 int dx = k + ix;
@@ -333,10 +612,10 @@ public class GifDecoder implements FrameDecoder<GifFrame>
                 // Start of line in source.
                 int sx = i * iw;
                 while (dx < dlim) {
-                    int currentColorIndex = toUnsignedInt(this.pixelCodes[sx]);
+                    int currentColorIndex = toUnsignedInt(pixelCodes[sx]);
                     int averageColor = act[currentColorIndex];
                     if (averageColor != COLOR_TRANSPARENT_BLACK) {
-                        outPixels[dx] = averageColor;
+                        canvas[dx] = averageColor;
                     } else if (isFirstFrame && isFirstFrameTransparent == null) {
                         isFirstFrameTransparent = true;
                     }
@@ -352,130 +631,73 @@ public class GifDecoder implements FrameDecoder<GifFrame>
     }
 
     /**
-     * Decodes LZW image data into pixel array. Adapted from John Cristy's BitmapMagick.
+     * Paints every {@code sampleSize}-th pixel of every {@code sampleSize}-th
+     * row of the frame into a canvas scaled down by {@code sampleSize}.
      */
-    private void decodeBitmapData(@NonNull GifFrame frame) {
-        ByteBuffer frameData = frame.frameData.duplicate();
-
-        // Initialize GIF data stream decoder.
-        final int dataSize = readByte(frameData);
-        final int clear = 1 << dataSize;
-        int codeSize = dataSize + 1;
-        int codeMask = (1 << codeSize) - 1;
-        for (int code = 0; code < clear; code++) {
-            prefix[code] = 0;
-            suffix[code] = (byte) code;
-        }
-        final byte[] block = this.block;
-        // Decode GIF pixel stream.
-        int pi, bi = 0, top = 0, first = 0, datum = 0, count = 0, bits = 0;
-        int oldCode = NULL_CODE;
-        int available = clear + 2;
-        final int endOfInformation = clear + 1;
-        final int npix = frame.iw * frame.ih;
-        decoderLoop:
-        for (pi = 0; pi < npix; ) {
-            while (top > 0) {
-                // Pop a pixel off the pixel stack.
-                pixelCodes[pi++] = pixelStack[--top];
-                if (pi == npix) {
-                    break decoderLoop;
-                }
-            }
-            while (bits < codeSize) {
-                // Read a new data block.
-                if (count == 0) {
-                    count = readBlock(frameData);
-                    if (count <= 0) {
-                        // End of data before emitting all the pixels
-                        break;
-                    }
-                    bi = 0;
-                }
-                datum += toUnsignedInt(block[bi]) << bits;
-                bits += 8;
-                ++bi;
-                --count;
-            }
-
-            // Get the next code.
-            int code = datum & codeMask;
-            datum >>= codeSize;
-            bits -= codeSize;
-
-            // Interpret the code.
-            if (code > available || code == endOfInformation) {
-                break;
-            }
-            if (code == clear) {
-                // Reset decoder.
-                codeSize = dataSize + 1;
-                codeMask = (1 << codeSize) - 1;
-                available = clear + 2;
-                oldCode = NULL_CODE;
-                continue;
-            }
-            if (oldCode == NULL_CODE) {
-                pixelCodes[pi++] = suffix[code];
-                oldCode = code;
-                first = code;
-                continue;
-            }
-            final int inCode = code;
-            if (code == available) {
-                pixelStack[top++] = (byte) first;
-                code = oldCode;
-            }
-            while (code > clear) {
-                pixelStack[top++] = suffix[code];
-                code = prefix[code];
-            }
-            first = toUnsignedInt(suffix[code]);
-            pixelCodes[pi++] = (byte) first;
-            if (available < DICT_SIZE) {
-                // Add a new string to the string table.
-                prefix[available] = (short) oldCode;
-                suffix[available] = (byte) first;
-                ++available;
-                if (((available & codeMask) == 0) && (available < DICT_SIZE)) {
-                    ++codeSize;
-                    codeMask += available;
+    private void copyIntoScratchSampled(
+        @NonNull GifFrame frame, @NonNull byte[] pixelCodes, @NonNull int[] canvas, int canvasRows, int sampleSize
+    ) {
+        int ix = frame.ix;
+        int iy = frame.iy;
+        int iw = frame.iw;
+        int ih = frame.ih;
+        int canvasWidth = sampledSize(gifSequence.width, sampleSize);
+        int left = sampledSize(ix, sampleSize);
+        int right = Math.min(sampledSize(ix + iw, sampleSize), canvasWidth);
+        int top = sampledSize(iy, sampleSize);
+        int bottom = Math.min(sampledSize(iy + ih, sampleSize), canvasRows);
+        int[] act = this.act;
+        for (int y = top; y < bottom; y++) {
+            int line = y * sampleSize - iy;
+            // Start of line in source, shifted so that sampled canvas x maps to x * sampleSize
+            int sx = (frame.interlace ? interlacedLineIndex(line, ih) : line) * iw - ix;
+            int dx = y * canvasWidth + left;
+            for (int x = left; x < right; x++) {
+                int color = act[toUnsignedInt(pixelCodes[sx + x * sampleSize])];
+                if (color != COLOR_TRANSPARENT_BLACK) {
+                    canvas[dx] = color;
                 }
+                dx++;
             }
-            oldCode = inCode;
         }
-
-        // Clear missing pixels.
-        Arrays.fill(pixelCodes, pi, npix, (byte) COLOR_TRANSPARENT_BLACK);
     }
 
     /**
-     * Reads a single byte from the input stream.
+     * Returns the position in the decoded pixel codes of the given line of an
+     * interlaced frame. The codes hold every 8th line starting with 0, then
+     * every 8th starting with 4, then every 4th starting with 2, and then the
+     * odd lines.
      */
-    private static int readByte(ByteBuffer buf) {
-        return toUnsignedInt(buf.get());
-    }
-
-    /**
-     * Reads next variable length block from input.
-     *
-     * @return number of bytes stored in "buffer".
-     */
-    private int readBlock(ByteBuffer buf) {
-        int blockSize = readByte(buf);
-        if (blockSize <= 0) {
-            return blockSize;
+    private static int interlacedLineIndex(int line, int ih) {
+        int pass1Lines = (ih + 7) / 8;
+        int pass2Lines = (ih + 3) / 8;
+        int pass3Lines = (ih + 1) / 4;
+        if (line % 8 == 0) {
+            return line / 8;
+        }
+        if (line % 8 == 4) {
+            return pass1Lines + line / 8;
+        }
+        if (line % 4 == 2) {
+            return pass1Lines + pass2Lines + line / 4;
         }
-        buf.get(block, 0, Math.min(blockSize, buf.remaining()));
-        return blockSize;
+        return pass1Lines + pass2Lines + pass3Lines + line / 2;
     }
 
     private Bitmap obtainBitmap() {
-        Bitmap result = allocator.obtain(gifSequence.width, gifSequence.height, Bitmap.Config.ARGB_8888);
+        Bitmap result = allocator.obtain(outWidth, outHeight, Bitmap.Config.ARGB_8888);
         result.setHasAlpha(true);
         return result;
     }
 
+    /**
+     * Size of the image dimension after taking every sampleSize-th pixel,
+     * starting from the first.
+     */
+    public static int sampledSize(int size, int sampleSize) {
+        return (size + sampleSize - 1) / sampleSize;
+    }
+
     private static int toUnsignedInt(byte b) {
         return b & MASK_INT_LOWEST_BYTE;
     }
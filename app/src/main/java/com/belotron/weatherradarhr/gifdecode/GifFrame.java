@@ -71,6 +71,10 @@ public class GifFrame implements Frame {
         this.timestamp = timestamp;
     }
 
+    public int getIndex() {
+        return index;
+    }
+
     /**
      * <p><b>GIF89a</b>:
      * <i>Indicates the way in which the graphic is to be treated after being displayed.</i></p>
@@ -115,6 +119,9 @@ public class GifFrame implements Frame {
     /** Buffer with the LZW stream data. */
     ByteBuffer frameData;
 
+    /** Position of frameData within the data of the whole GIF. */
+    int frameDataOffset;
+
     /** Local Color Table. */
     @ColorInt
     int[] lct;
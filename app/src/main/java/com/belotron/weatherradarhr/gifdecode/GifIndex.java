@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2018-2023 Marko Topolnik
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.belotron.weatherradarhr.gifdecode;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Stores what {@link GifParser} finds out about a GIF in a sidecar file: the
+ * dimensions, the color tables, and where each frame's image data starts and
+ * ends. With it, a GIF kept in a file can be reopened without scanning its
+ * block structure again.
+ */
+public final class GifIndex {
+    private static final int VERSION = 1;
+    private static final int NO_COLOR_TABLE = -1;
+    private static final int MAX_COLOR_TABLE_SIZE = 256;
+
+    private GifIndex() {
+    }
+
+    /**
+     * Writes the index of the given GIF, which must have been parsed from a
+     * buffer with {@code dataLength} remaining bytes. {@code sourceStamp}
+     * identifies the version of the GIF's data, for example the last-modified
+     * time of the file holding it.
+     */
+    public static void write(
+        @NonNull GifSequence gifSequence, int dataLength, long sourceStamp, @NonNull File indexFile
+    ) throws IOException {
+        File growingFile = new File(indexFile.getPath() + ".growing");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(growingFile)))) {
+            out.writeInt(VERSION);
+            out.writeLong(sourceStamp);
+            out.writeInt(dataLength);
+            out.writeInt(gifSequence.width);
+            out.writeInt(gifSequence.height);
+            out.writeBoolean(gifSequence.gctFlag);
+            out.writeInt(gifSequence.gctSize);
+            out.writeInt(gifSequence.bgIndex);
+            out.writeInt(gifSequence.pixelAspect);
+            out.writeInt(gifSequence.bgColor);
+            out.writeInt(gifSequence.loopCount);
+            writeColorTable(out, gifSequence.gct);
+            List<GifFrame> frames = gifSequence.getFrames();
+            out.writeInt(frames.size());
+            for (GifFrame frame : frames) {
+                out.writeInt(frame.ix);
+                out.writeInt(frame.iy);
+                out.writeInt(frame.iw);
+                out.writeInt(frame.ih);
+                out.writeBoolean(frame.interlace);
+                out.writeBoolean(frame.transparency);
+                out.writeInt(frame.dispose);
+                out.writeInt(frame.transIndex);
+                out.writeInt(frame.delay);
+                writeColorTable(out, frame.lct);
+                out.writeInt(frame.frameDataOffset);
+                out.writeInt(frame.frameData.remaining());
+            }
+        }
+        if (!growingFile.renameTo(indexFile)) {
+            throw new IOException("Failed to rename " + growingFile + " to " + indexFile.getName());
+        }
+    }
+
+    /**
+     * Reconstructs the GIF in the remaining part of the buffer from its index.
+     * Returns null if there's no index, or it doesn't match the data.
+     */
+    @Nullable
+    public static GifSequence read(
+        @NonNull File indexFile, long sourceStamp, @NonNull ByteBuffer data
+    ) throws IOException {
+        if (!indexFile.isFile()) {
+            return null;
+        }
+        ByteBuffer gifData = data.slice();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != VERSION || in.readLong() != sourceStamp || in.readInt() != gifData.remaining()) {
+                return null;
+            }
+            GifSequence gifSequence = new GifSequence();
+            gifSequence.width = in.readInt();
+            gifSequence.height = in.readInt();
+            gifSequence.gctFlag = in.readBoolean();
+            gifSequence.gctSize = in.readInt();
+            gifSequence.bgIndex = in.readInt();
+            gifSequence.pixelAspect = in.readInt();
+            gifSequence.bgColor = in.readInt();
+            gifSequence.loopCount = in.readInt();
+            gifSequence.gct = readColorTable(in);
+            int frameCount = in.readInt();
+            if (frameCount <= 0) {
+                return null;
+            }
+            for (int i = 0; i < frameCount; i++) {
+                GifFrame frame = new GifFrame(i);
+                frame.ix = in.readInt();
+                frame.iy = in.readInt();
+                frame.iw = in.readInt();
+                frame.ih = in.readInt();
+                frame.interlace = in.readBoolean();
+                frame.transparency = in.readBoolean();
+                frame.dispose = in.readInt();
+                frame.transIndex = in.readInt();
+                frame.delay = in.readInt();
+                frame.lct = readColorTable(in);
+                int offset = in.readInt();
+                int length = in.readInt();
+                if (offset < 0 || length < 0 || offset + length > gifData.limit()) {
+                    return null;
+                }
+                ByteBuffer frameData = gifData.duplicate();
+                frameData.limit(offset + length);
+                frameData.position(offset);
+                frame.frameDataOffset = offset;
+                frame.frameData = frameData.slice();
+                gifSequence.getFrames().add(frame);
+            }
+            return gifSequence;
+        }
+    }
+
+    private static void writeColorTable(@NonNull DataOutputStream out, @Nullable int[] colorTable) throws IOException {
+        if (colorTable == null) {
+            out.writeInt(NO_COLOR_TABLE);
+            return;
+        }
+        out.writeInt(colorTable.length);
+        for (int color : colorTable) {
+            out.writeInt(color);
+        }
+    }
+
+    @Nullable
+    private static int[] readColorTable(@NonNull DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == NO_COLOR_TABLE) {
+            return null;
+        }
+        if (length < 0 || length > MAX_COLOR_TABLE_SIZE) {
+            throw new IOException("Invalid color table length in GIF index: " + length);
+        }
+        int[] colorTable = new int[length];
+        for (int i = 0; i < length; i++) {
+            colorTable[i] = in.readInt();
+        }
+        return colorTable;
+    }
+}
@@ -20,11 +20,15 @@ import static com.belotron.weatherradarhr.gifdecode.GifFrame.DISPOSAL_NONE;
 import static com.belotron.weatherradarhr.gifdecode.GifFrame.DISPOSAL_UNSPECIFIED;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import com.belotron.weatherradarhr.ImageDecodeException;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
 
 /**
  * A class responsible for creating {@link GifSequence}s from data
@@ -143,6 +147,14 @@ public class GifParser {
     // Raw data read working array.
     private final byte[] block = new byte[MAX_BLOCK_SIZE];
 
+    @Nullable
+    private final ReadableByteChannel input;
+    @Nullable
+    private final FrameListener frameListener;
+    // With a streamed GIF, receives the data from the input. Its position is
+    // the amount of data received so far.
+    @Nullable
+    private final ByteBuffer body;
     @NonNull
     private final ByteBuffer rawData;
     @NonNull
@@ -150,24 +162,113 @@ public class GifParser {
     private GifFrame currentFrame;
     private int blockSize = 0;
 
-    private GifParser(@NonNull byte[] data) {
-        rawData = ByteBuffer.wrap(data).asReadOnlyBuffer();
+    /**
+     * Gets notified of each frame of a streamed GIF as soon as its image data
+     * has fully arrived.
+     */
+    public interface FrameListener {
+        void onFrame(@NonNull GifSequence gifSequence, @NonNull GifFrame frame);
+    }
+
+    private GifParser(@NonNull ByteBuffer data) {
+        this.input = null;
+        this.frameListener = null;
+        this.body = null;
+        this.rawData = data.slice().asReadOnlyBuffer();
+        rawData.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private GifParser(
+        @NonNull ReadableByteChannel input, @NonNull ByteBuffer body, @NonNull FrameListener frameListener
+    ) {
+        this.input = input;
+        this.frameListener = frameListener;
+        this.body = body;
+        this.rawData = body.duplicate().asReadOnlyBuffer();
         rawData.position(0);
+        rawData.limit(body.position());
         rawData.order(ByteOrder.LITTLE_ENDIAN);
     }
 
     @NonNull
     public static GifSequence parse(byte[] data) {
+        return parse(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Parses the GIF in the remaining part of the buffer. The frames point
+     * into the buffer, so it may well be a file mapped into memory.
+     */
+    @NonNull
+    public static GifSequence parse(@NonNull ByteBuffer data) {
         GifParser parser = new GifParser(data);
-        parser.readHeader();
-        parser.readContents();
-        GifSequence gifSequence = parser.gifSequence;
+        return parser.parseData();
+    }
+
+    /**
+     * Returns a parser that reads the GIF from the input into the remaining
+     * space of the body buffer, which must be exactly as large as the GIF, and
+     * reports each frame to the listener while the rest of the GIF is still
+     * arriving. The frames point into the body buffer, so it may well be a
+     * file mapped into memory.
+     */
+    @NonNull
+    public static GifParser streaming(
+        @NonNull ReadableByteChannel input, @NonNull ByteBuffer body, @NonNull FrameListener frameListener
+    ) {
+        return new GifParser(input, body, frameListener);
+    }
+
+    /**
+     * Parses a GIF obtained from {@link #streaming}, reading the input until
+     * the body buffer is full.
+     */
+    @NonNull
+    public GifSequence parseStream() {
+        GifSequence gifSequence = parseData();
+        // Read whatever follows the trailer so the body buffer gets all of it
+        while (fill(1)) {
+            rawData.position(rawData.limit());
+        }
+        return gifSequence;
+    }
+
+    @NonNull
+    private GifSequence parseData() {
+        readHeader();
+        readContents();
         if (gifSequence.getFrames().size() == 0) {
             throw new ImageDecodeException("The GIF contains zero images");
         }
         return gifSequence;
     }
 
+    /**
+     * Ensures that at least {@code count} bytes are available in rawData,
+     * reading them from the input if the GIF is streamed. Returns false if the
+     * data ends before that. Throws an {@link UncheckedIOException} if the
+     * input ends before filling the body buffer.
+     */
+    private boolean fill(int count) {
+        while (rawData.remaining() < count) {
+            if (input == null || !body.hasRemaining()) {
+                return false;
+            }
+            int readCount;
+            try {
+                readCount = input.read(body);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (readCount < 0) {
+                throw new UncheckedIOException(new IOException(
+                    "Incomplete content. Expected " + body.limit() + " bytes, got " + body.position()));
+            }
+            rawData.limit(body.position());
+        }
+        return true;
+    }
+
     /**
      * Reads GIF file header information.
      */
@@ -223,6 +324,7 @@ public class GifParser {
         try {
             int nBytes = 3 * nColors;
             byte[] c = new byte[nBytes];
+            fill(nBytes);
             rawData.get(c);
             // Max size to avoid bounds checks.
             int[] tab = new int[MAX_BLOCK_SIZE];
@@ -366,16 +468,18 @@ public class GifParser {
             // No local color table.
             currentFrame.lct = null;
         }
-        rawData.mark();
+        int frameStartOffset = rawData.position();
+        currentFrame.frameDataOffset = frameStartOffset;
         skipImageData();
-        int frameEndOffset = rawData.position();
-        rawData.reset();
-        rawData.limit(frameEndOffset);
-        currentFrame.frameData = rawData.slice();
-        rawData.position(frameEndOffset);
-        rawData.limit(rawData.capacity());
+        ByteBuffer frameData = rawData.duplicate();
+        frameData.limit(rawData.position());
+        frameData.position(frameStartOffset);
+        currentFrame.frameData = frameData.slice();
         // Add image to frame.
         gifSequence.getFrames().add(currentFrame);
+        if (frameListener != null) {
+            frameListener.onFrame(gifSequence, currentFrame);
+        }
     }
 
     /**
@@ -410,6 +514,7 @@ public class GifParser {
         int blockSize;
         do {
             blockSize = read();
+            fill(blockSize + 1);
             int newPosition = rawData.position() + blockSize;
             if (newPosition >= rawData.limit()) {
                 rawData.position(rawData.limit());
@@ -444,6 +549,7 @@ public class GifParser {
     private void readBlock() {
         blockSize = read();
         if (blockSize > 0) {
+            fill(blockSize);
             int count = 0;
             int n = 0;
             try {
@@ -464,6 +570,7 @@ public class GifParser {
      */
     private int read() {
         try {
+            fill(1);
             return rawData.get() & MASK_INT_LOWEST_BYTE;
         } catch (BufferUnderflowException e) {
             throw new ImageDecodeException("GIF parse error", e);
@@ -475,6 +582,11 @@ public class GifParser {
      */
     private int readShort() {
         // Read 16-bit value.
-        return rawData.getShort();
+        try {
+            fill(2);
+            return rawData.getShort();
+        } catch (BufferUnderflowException e) {
+            throw new ImageDecodeException("GIF parse error", e);
+        }
     }
 }
@@ -21,8 +21,8 @@ import androidx.annotation.NonNull;
 import com.belotron.weatherradarhr.FrameSequence;
 import kotlin.jvm.functions.Function1;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * A header object containing the number of frames in an animated GIF image as well as basic
@@ -37,8 +37,9 @@ public class GifSequence implements FrameSequence<GifFrame> {
     /** Indicates that this header has no "Netscape" loop count. */
     private static final int NETSCAPE_LOOP_COUNT_DOES_NOT_EXIST = -1;
 
+    // Frames of a streamed GIF get added while decoders already read them
     @NonNull
-    private final List<GifFrame> frames = new ArrayList<>();
+    private final List<GifFrame> frames = new CopyOnWriteArrayList<>();
 
     @NonNull @Override
     public List<GifFrame> getFrames() {
@@ -47,12 +48,29 @@ public class GifSequence implements FrameSequence<GifFrame> {
 
     @NonNull @Override
     public GifDecoder intoDecoder(@NonNull Allocator allocator) {
-        return new GifDecoder(allocator, this, null);
+        return intoDecoder(allocator, 1);
     }
 
+    @NonNull @Override
+    public GifDecoder intoDecoder(@NonNull Allocator allocator, int sampleSize) {
+        return new GifDecoder(allocator, this, null, GifDecoder.DEFAULT_CHECKPOINT_INTERVAL, sampleSize);
+    }
+
+    /**
+     * Returns a decoder that OCRs the frames' timestamps. It is meant to go
+     * through the frames in order, so it doesn't keep canvas checkpoints.
+     */
     @NonNull
     public GifDecoder intoDecoder(@NonNull Allocator allocator, Function1<? super Pixels, Long> ocrTimestamp) {
-        return new GifDecoder(allocator, this, ocrTimestamp);
+        return new GifDecoder(allocator, this, ocrTimestamp, GifDecoder.NO_CHECKPOINTS, 1);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
     }
 
     @ColorInt
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2018-2023 Marko Topolnik
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.belotron.weatherradarhr.gifdecode;
+
+/*
+ * Copyright (c) 2013 Xcellent Creations, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Expands the LZW-compressed data of a GIF frame into color-table indices.
+ * Holds the LZW working arrays, so a single instance must not be used from
+ * several threads at once.
+ */
+final class LzwDecoder {
+
+    /**
+     * Dictionary size for decoding LZW compressed data.
+     */
+    private static final int DICT_SIZE = 4 * 1024;
+
+    private static final int NULL_CODE = -1;
+
+    private static final int MASK_INT_LOWEST_BYTE = 0x000000FF;
+
+    // LZW decoder working arrays.
+    private final byte[] block = new byte[256];
+    private final short[] prefix = new short[DICT_SIZE];
+    private final byte[] suffix = new byte[DICT_SIZE];
+    private final byte[] pixelStack = new byte[DICT_SIZE + 1];
+
+    /**
+     * Decodes LZW image data into pixel array. Adapted from John Cristy's BitmapMagick.
+     * Stops after emitting {@code pixelLimit} pixels.
+     */
+    void decode(@NonNull GifFrame frame, @NonNull byte[] pixelCodes, int pixelLimit) {
+        ByteBuffer frameData = frame.frameData.duplicate();
+
+        // Initialize GIF data stream decoder.
+        final int dataSize = readByte(frameData);
+        final int clear = 1 << dataSize;
+        int codeSize = dataSize + 1;
+        int codeMask = (1 << codeSize) - 1;
+        for (int code = 0; code < clear; code++) {
+            prefix[code] = 0;
+            suffix[code] = (byte) code;
+        }
+        final byte[] block = this.block;
+        // Decode GIF pixel stream.
+        int pi, bi = 0, top = 0, first = 0, datum = 0, count = 0, bits = 0;
+        int oldCode = NULL_CODE;
+        int available = clear + 2;
+        final int endOfInformation = clear + 1;
+        final int npix = Math.min(frame.iw * frame.ih, pixelLimit);
+        decoderLoop:
+        for (pi = 0; pi < npix; ) {
+            while (top > 0) {
+                // Pop a pixel off the pixel stack.
+                pixelCodes[pi++] = pixelStack[--top];
+                if (pi == npix) {
+                    break decoderLoop;
+                }
+            }
+            while (bits < codeSize) {
+                // Read a new data block.
+                if (count == 0) {
+                    count = readBlock(frameData);
+                    if (count <= 0) {
+                        // End of data before emitting all the pixels
+                        break;
+                    }
+                    bi = 0;
+                }
+                datum += toUnsignedInt(block[bi]) << bits;
+                bits += 8;
+                ++bi;
+                --count;
+            }
+
+            // Get the next code.
+            int code = datum & codeMask;
+            datum >>= codeSize;
+            bits -= codeSize;
+
+            // Interpret the code.
+            if (code > available || code == endOfInformation) {
+                break;
+            }
+            if (code == clear) {
+                // Reset decoder.
+                codeSize = dataSize + 1;
+                codeMask = (1 << codeSize) - 1;
+                available = clear + 2;
+                oldCode = NULL_CODE;
+                continue;
+            }
+            if (oldCode == NULL_CODE) {
+                pixelCodes[pi++] = suffix[code];
+                oldCode = code;
+                first = code;
+                continue;
+            }
+            final int inCode = code;
+            if (code == available) {
+                pixelStack[top++] = (byte) first;
+                code = oldCode;
+            }
+            while (code > clear) {
+                pixelStack[top++] = suffix[code];
+                code = prefix[code];
+            }
+            first = toUnsignedInt(suffix[code]);
+            pixelCodes[pi++] = (byte) first;
+            if (available < DICT_SIZE) {
+                // Add a new string to the string table.
+                prefix[available] = (short) oldCode;
+                suffix[available] = (byte) first;
+                ++available;
+                if (((available & codeMask) == 0) && (available < DICT_SIZE)) {
+                    ++codeSize;
+                    codeMask += available;
+                }
+            }
+            oldCode = inCode;
+        }
+
+        // Clear missing pixels.
+        Arrays.fill(pixelCodes, pi, npix, (byte) 0);
+    }
+
+    /**
+     * Reads a single byte from the input stream.
+     */
+    private static int readByte(ByteBuffer buf) {
+        return toUnsignedInt(buf.get());
+    }
+
+    /**
+     * Reads next variable length block from input.
+     *
+     * @return number of bytes stored in "buffer".
+     */
+    private int readBlock(ByteBuffer buf) {
+        int blockSize = readByte(buf);
+        if (blockSize <= 0) {
+            return blockSize;
+        }
+        buf.get(block, 0, Math.min(blockSize, buf.remaining()));
+        return blockSize;
+    }
+
+    private static int toUnsignedInt(byte b) {
+        return b & MASK_INT_LOWEST_BYTE;
+    }
+}
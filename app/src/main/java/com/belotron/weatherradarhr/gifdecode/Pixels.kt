@@ -37,6 +37,18 @@ interface Pixels {
     val height: Int
     operator fun get(x: Int, y: Int): Int
 
+    /**
+     * Copies the rows [top, top + rowCount) into `dest`, starting at `offset`,
+     * with a row stride of `width`.
+     */
+    fun getRows(dest: IntArray, offset: Int, top: Int, rowCount: Int) {
+        for (y in 0 until rowCount) {
+            for (x in 0 until width) {
+                dest[offset + y * width + x] = this[x, top + y]
+            }
+        }
+    }
+
     fun asciiPixel(x: Int, y: Int): Char {
         return ASCII_GRAYSCALE[
                 min(ASCII_GRAYSCALE.length - 1,
@@ -46,11 +58,15 @@ interface Pixels {
 }
 
 class IntArrayPixels(
-        private val pixels: IntArray,
+        internal val pixels: IntArray,
         override val width: Int
 ) : Pixels {
     override val height = pixels.size / width
     override operator fun get(x: Int, y: Int) = pixels[width * y + x]
+
+    override fun getRows(dest: IntArray, offset: Int, top: Int, rowCount: Int) {
+        System.arraycopy(pixels, top * width, dest, offset, rowCount * width)
+    }
 }
 
 class BitmapPixels(
@@ -59,4 +75,9 @@ class BitmapPixels(
     override val width = bitmap.width
     override val height = bitmap.height
     override operator fun get(x: Int, y: Int) = bitmap[x, y]
+
+    // A single call instead of one per pixel
+    override fun getRows(dest: IntArray, offset: Int, top: Int, rowCount: Int) {
+        bitmap.getPixels(dest, offset, width, 0, top, width, rowCount)
+    }
 }
@@ -0,0 +1,519 @@
+/*
+ * Copyright (C) 2018-2023 Marko Topolnik
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.belotron.weatherradarhr
+
+import com.belotron.weatherradarhr.CcOption.CC_PRIVATE
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.security.MessageDigest
+import java.time.Instant
+import java.time.ZoneId
+import java.time.ZonedDateTime
+import java.time.format.DateTimeFormatter
+import java.time.format.DateTimeParseException
+import java.util.*
+
+internal const val HTTP_CACHE_DIR = "httpcache"
+internal const val GIF_INDEX_SUFFIX = ".idx"
+internal const val PARTIAL_SUFFIX = ".partial"
+internal const val PARTIAL_META_SUFFIX = ".partial.meta"
+internal const val GROWING_SUFFIX = ".growing"
+internal const val DEFAULT_LAST_MODIFIED_STR = "Thu, 01 Jan 1970 00:00:00 GMT"
+internal const val NO_CACHE_LAST_MODIFIED = "no-cache"
+
+// Epoch Last-Modified of an entry whose response said no-cache
+internal const val NO_CACHE_EPOCH = Long.MIN_VALUE
+
+// The version of a response that can't be told apart from other versions
+internal const val NO_VERSION = Long.MIN_VALUE
+
+// The publication period of a URL whose caller doesn't know how often it changes
+internal const val UNKNOWN_PUBLICATION_PERIOD = 0L
+
+private const val CONTENT_HASH_ALGORITHM = "SHA-256"
+
+private const val JOURNAL_NAME = "cache.journal"
+private const val JOURNAL_MAGIC = 0x4a524e4c
+private const val JOURNAL_VERSION = 3
+private const val OP_PUT = 1
+private const val OP_ACCESS = 2
+private const val OP_REMOVE = 3
+private const val OP_REVALIDATE = 4
+
+// How many recent Last-Modified values of a URL to learn its update period from
+private const val PUBLICATION_HISTORY_SIZE = 4
+private const val HOUR_MILLIS = 60 * 60_000L
+
+// Rewrite the journal when it has this many more records than there are entries
+private const val JOURNAL_SLACK_RECORDS = 2_000
+
+// Number of locks that guard the replacement of cache files
+private const val CACHE_LOCK_STRIPES = 16
+
+// Temporary files older than this were left behind by a process that died
+private const val STALE_TEMP_FILE_MILLIS = 60 * 60_000L
+
+private val lastModifiedDateFormat = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss z", Locale.US)
+private val gmt = ZoneId.of("GMT")
+private val maxAgeRegex = """max-age=(\d+)""".toRegex()
+private val defaultLastModified = ZonedDateTime.parse(DEFAULT_LAST_MODIFIED_STR, lastModifiedDateFormat).toInstant().toEpochMilli()
+
+/**
+ * Until when a response that is current [now] can be used without asking the
+ * server. Going by Cache-Control if it says anything, otherwise by the
+ * [publications], the recent Last-Modified values, newest first.
+ *
+ * Only a caller that knows how often the server publishes passes the
+ * [publicationPeriodMillis]. The gaps between the publications can only make
+ * it shorter: the cache sees just the publications that got fetched, so the
+ * gaps between them may span several periods. A response stops being fresh
+ * [freshnessMarginMillis] before the next publication is due, in case it
+ * comes early.
+ */
+internal fun freshUntil(
+    now: Long, cacheControl: String, publications: LongArray, publicationPeriodMillis: Long,
+    freshnessMarginMillis: Long
+): Long {
+    if ("no-cache" in cacheControl || "no-store" in cacheControl) {
+        return 0
+    }
+    maxAgeRegex.find(cacheControl)?.also { return now + 1000 * it.groupValues[1].toLong() }
+    if (publicationPeriodMillis <= UNKNOWN_PUBLICATION_PERIOD || publications.isEmpty()) {
+        return 0
+    }
+    val period = (0 until publications.size - 1)
+        .minOfOrNull { publications[it] - publications[it + 1] }
+        ?.coerceAtMost(publicationPeriodMillis)
+        ?: publicationPeriodMillis
+    // DHMZ reports Last-Modified off by whole hours, so with a period under
+    // an hour only the position within the hour counts
+    val sincePublication = (now - publications[0]).let { if (period < HOUR_MILLIS) it.mod(HOUR_MILLIS) else it }
+    if (sincePublication >= period) {
+        // The next publication is overdue
+        return 0
+    }
+    return now - sincePublication + period - freshnessMarginMillis
+}
+
+internal fun String.parseLastModified() = try {
+    ZonedDateTime.parse(this, lastModifiedDateFormat).toInstant().toEpochMilli()
+} catch (_: DateTimeParseException) {
+    defaultLastModified
+}
+
+/**
+ * Hex-encoded hash of the remaining bytes of [body]. Leaves the buffer's
+ * position as it was.
+ */
+internal fun contentHash(body: ByteBuffer): String {
+    val digest = MessageDigest.getInstance(CONTENT_HASH_ALGORITHM)
+    digest.update(body.duplicate())
+    return digest.digest().joinToString("") { "%02x".format(it) }
+}
+
+/**
+ * The version of a response with the given [contentHash]. A server may bump
+ * Last-Modified without changing the content, so the version goes by the
+ * content alone.
+ */
+internal fun versionOf(contentHash: String) = contentHash.substring(0, 16).toULong(16).toLong()
+
+internal fun formatLastModified(epochMillis: Long): String =
+    lastModifiedDateFormat.format(Instant.ofEpochMilli(epochMillis).atZone(gmt))
+
+private val cacheFileLocks = Array(CACHE_LOCK_STRIPES) { Any() }
+
+/**
+ * The lock to hold while replacing or deleting the cache file named
+ * [cacheFileName]. Different files mostly get different locks, so they can be
+ * replaced in parallel. When holding it, don't take another one.
+ */
+internal fun cacheFileLock(cacheFileName: String): Any =
+    cacheFileLocks[(cacheFileName.hashCode() and Int.MAX_VALUE) % CACHE_LOCK_STRIPES]
+
+private val String.isCacheFileName get() =
+    this != JOURNAL_NAME && !startsWith("$JOURNAL_NAME.") &&
+    listOf(GIF_INDEX_SUFFIX, PARTIAL_SUFFIX, PARTIAL_META_SUFFIX, GROWING_SUFFIX).none { endsWith(it) }
+
+/**
+ * In-memory index of the HTTP cache directory, keyed by cache file name.
+ * Requests take their conditional headers from it without opening the cache
+ * files. It keeps the cache within its byte cap by deleting the least
+ * recently used files.
+ *
+ * A cache file holds just the response body, the index holds the rest. It
+ * also knows the hash of each body, so a new cache file with the same content
+ * as another one becomes a hard link to it. Such files count against the cap
+ * only once.
+ *
+ * It also tells whether a cached response is still fresh, so a request can
+ * skip the server altogether. The servers publish on a fixed schedule, so a
+ * response stays fresh until shortly before the next publication is due.
+ * The index learns the period of each URL from its recent Last-Modified
+ * values. An explicit max-age from the server takes precedence.
+ *
+ * The index has its own lock, which can be taken while holding a
+ * [cacheFileLock], but not the other way around.
+ *
+ * An append-only journal in the cache directory persists the index. On
+ * startup the index replays it and then reconciles it with the files
+ * actually present. A cache file the journal doesn't know about is useless
+ * without its headers, so it gets deleted.
+ */
+object HttpCacheIndex {
+
+    class Entry(
+        // Epoch millis, or NO_CACHE_EPOCH
+        val lastModified: Long,
+        val etag: String?,
+        // See contentHash()
+        val contentHash: String,
+        val size: Long,
+        var lastAccess: Long,
+        // Recent distinct Last-Modified values, newest first
+        val publications: LongArray,
+        var freshUntil: Long
+    ) {
+        val version get() = versionOf(contentHash)
+    }
+
+    private lateinit var dir: File
+    private var maxBytes = Long.MAX_VALUE
+    private var freshnessMarginMillis = 0L
+    private val entries = LinkedHashMap<String, Entry>(64, 0.75f, true)
+    // The keys of the entries with each content hash, whose files are all hard links to the same content
+    private val keysByContent = HashMap<String, MutableSet<String>>()
+    private var totalBytes = 0L
+    private var isLoaded = false
+    private var journalOut: DataOutputStream? = null
+    private var journalRecordCount = 0
+
+    /**
+     * A cached response stops being fresh [freshnessMarginMillis] before the
+     * next publication is due, in case it comes early. Forgets the directory
+     * it was initialized with before, and loads the new one on first use.
+     */
+    @Synchronized
+    fun init(dir: File, maxBytes: Long, freshnessMarginMillis: Long) {
+        closeJournal()
+        entries.clear()
+        keysByContent.clear()
+        totalBytes = 0
+        isLoaded = false
+        this.dir = dir
+        this.maxBytes = maxBytes
+        this.freshnessMarginMillis = freshnessMarginMillis
+    }
+
+    @Synchronized
+    operator fun get(key: String): Entry? {
+        ensureLoaded()
+        return entries[key]
+    }
+
+    @Synchronized
+    fun isFresh(key: String): Boolean {
+        ensureLoaded()
+        return entries[key]?.let { System.currentTimeMillis() < it.freshUntil } ?: false
+    }
+
+    @Synchronized
+    fun recordAccess(key: String) {
+        ensureLoaded()
+        val entry = entries[key] ?: return
+        entry.lastAccess = System.currentTimeMillis()
+        appendToJournal(OP_ACCESS) {
+            writeUTF(key)
+            writeLong(entry.lastAccess)
+        }
+    }
+
+    // The key of another cache file with the given content, if any
+    @Synchronized
+    fun keyWithContent(contentHash: String, exceptKey: String): String? {
+        ensureLoaded()
+        return keysByContent[contentHash]?.firstOrNull { it != exceptKey }
+    }
+
+    /**
+     * Records the file that replaced the cache file named [key]. Call it while
+     * holding the [cacheFileLock] of the key. If the cache went over its byte
+     * cap, evicts the least recently used entries and returns their keys. Pass
+     * them to [deleteEvicted] after releasing the lock.
+     *
+     * The response stays fresh until the next publication is due, going by
+     * [publicationPeriodMillis], see [freshUntil].
+     */
+    @Synchronized
+    fun put(
+        key: String, lastModified: Long, etag: String?, contentHash: String, size: Long, cacheControl: String,
+        publicationPeriodMillis: Long = UNKNOWN_PUBLICATION_PERIOD
+    ): List<String> {
+        ensureLoaded()
+        val now = System.currentTimeMillis()
+        val previous = entries[key]
+        val publications = if (lastModified == NO_CACHE_EPOCH) LongArray(0) else {
+            val earlier = previous?.publications?.filter { it < lastModified } ?: emptyList()
+            (listOf(lastModified) + earlier).take(PUBLICATION_HISTORY_SIZE).toLongArray()
+        }
+        val freshUntil = freshUntil(now, cacheControl, publications, publicationPeriodMillis, freshnessMarginMillis)
+        val entry = Entry(lastModified, etag, contentHash, size, now, publications, freshUntil)
+        entries.put(key, entry)?.also { removeContent(key, it) }
+        addContent(key, entry)
+        appendToJournal(OP_PUT) { writeEntry(key, entry) }
+        return evictOverCap(key)
+    }
+
+    // Records that the server confirmed the cached response is current
+    @Synchronized
+    fun revalidated(key: String, cacheControl: String, publicationPeriodMillis: Long = UNKNOWN_PUBLICATION_PERIOD) {
+        ensureLoaded()
+        val entry = entries[key] ?: return
+        entry.freshUntil = freshUntil(
+            System.currentTimeMillis(), cacheControl, entry.publications, publicationPeriodMillis, freshnessMarginMillis)
+        appendToJournal(OP_REVALIDATE) {
+            writeUTF(key)
+            writeLong(entry.freshUntil)
+        }
+    }
+
+    /**
+     * Deletes the files of the evicted entries, unless they got back into the
+     * cache in the meantime. Takes each file's [cacheFileLock], so call it
+     * without holding any.
+     */
+    fun deleteEvicted(keys: List<String>) {
+        for (key in keys) {
+            synchronized(cacheFileLock(key)) {
+                if (get(key) == null) {
+                    File(dir, key).delete()
+                    File(dir, key + GIF_INDEX_SUFFIX).delete()
+                }
+            }
+        }
+    }
+
+    @Synchronized
+    fun remove(key: String) {
+        ensureLoaded()
+        val entry = entries.remove(key) ?: return
+        removeContent(key, entry)
+        appendToJournal(OP_REMOVE) { writeUTF(key) }
+    }
+
+    private fun addContent(key: String, entry: Entry) {
+        val keys = keysByContent.getOrPut(entry.contentHash) { HashSet() }
+        if (keys.isEmpty()) {
+            totalBytes += entry.size
+        }
+        keys.add(key)
+    }
+
+    private fun removeContent(key: String, entry: Entry) {
+        val keys = keysByContent[entry.contentHash] ?: return
+        keys.remove(key)
+        if (keys.isEmpty()) {
+            keysByContent.remove(entry.contentHash)
+            totalBytes -= entry.size
+        }
+    }
+
+    private fun evictOverCap(keyToKeep: String): List<String> {
+        val evicted = mutableListOf<String>()
+        val iter = entries.entries.iterator()
+        while (totalBytes > maxBytes && iter.hasNext()) {
+            val (key, entry) = iter.next()
+            if (key == keyToKeep) {
+                continue
+            }
+            info(CC_PRIVATE) { "HTTP cache at ${totalBytes / 1024} kB, evicting $key" }
+            iter.remove()
+            removeContent(key, entry)
+            evicted.add(key)
+            appendToJournal(OP_REMOVE) { writeUTF(key) }
+        }
+        return evicted
+    }
+
+    private fun ensureLoaded() {
+        if (isLoaded) {
+            return
+        }
+        isLoaded = true
+        dir.mkdirs()
+        val journalFile = File(dir, JOURNAL_NAME)
+        if (journalFile.exists()) {
+            try {
+                if (!replayJournal(journalFile)) {
+                    info { "HTTP cache journal has an old format, clearing the cache" }
+                }
+            } catch (e: IOException) {
+                severe(CC_PRIVATE, e) { "Failed to replay the HTTP cache journal, clearing the cache" }
+                entries.clear()
+            }
+        }
+        reconcileWithDir()
+        entries.forEach { (key, entry) -> addContent(key, entry) }
+        info { "HTTP cache index: ${entries.size} files, ${totalBytes / 1024} kB" }
+        rewriteJournal()
+    }
+
+    // Returns false if the journal has another format. A truncated last record is
+    // the sign of a process that died while writing it. The records before it are fine.
+    private fun replayJournal(journalFile: File): Boolean {
+        DataInputStream(BufferedInputStream(FileInputStream(journalFile))).use { input ->
+            if (input.readInt() != JOURNAL_MAGIC) {
+                throw IOException("Not a journal")
+            }
+            if (input.readInt() != JOURNAL_VERSION) {
+                return false
+            }
+            try {
+                while (true) {
+                    when (input.readByte().toInt()) {
+                        OP_PUT -> {
+                            val key = input.readUTF()
+                            entries[key] = input.readEntry()
+                        }
+                        OP_ACCESS -> {
+                            val key = input.readUTF()
+                            val lastAccess = input.readLong()
+                            entries[key]?.lastAccess = lastAccess
+                        }
+                        OP_REVALIDATE -> {
+                            val key = input.readUTF()
+                            val freshUntil = input.readLong()
+                            entries[key]?.freshUntil = freshUntil
+                        }
+                        OP_REMOVE -> entries.remove(input.readUTF())
+                        else -> throw IOException("Corrupt journal")
+                    }
+                }
+            } catch (_: EOFException) {
+            }
+        }
+        return true
+    }
+
+    // Drops the entries whose files are gone, and deletes the files the journal
+    // doesn't know about and the temporary files of downloads that never completed
+    private fun reconcileWithDir() {
+        val files = dir.listFiles() ?: emptyArray()
+        val now = System.currentTimeMillis()
+        val presentNames = HashSet<String>()
+        for (file in files) {
+            val name = file.name
+            if (name.isCacheFileName) {
+                if (name in entries) {
+                    presentNames.add(name)
+                } else {
+                    file.delete()
+                    File(dir, name + GIF_INDEX_SUFFIX).delete()
+                }
+            } else if ((name.endsWith(GROWING_SUFFIX) || name.endsWith(PARTIAL_SUFFIX)
+                        || name.endsWith(PARTIAL_META_SUFFIX)) && now - file.lastModified() > STALE_TEMP_FILE_MILLIS) {
+                file.delete()
+            }
+        }
+        entries.keys.retainAll(presentNames)
+        val sorted = entries.entries.sortedBy { it.value.lastAccess }
+        entries.clear()
+        sorted.forEach { (key, entry) -> entries[key] = entry }
+    }
+
+    private fun rewriteJournal() {
+        closeJournal()
+        val journalFile = File(dir, JOURNAL_NAME)
+        val tmpFile = File(dir, "$JOURNAL_NAME.tmp")
+        try {
+            DataOutputStream(BufferedOutputStream(FileOutputStream(tmpFile))).use { out ->
+                out.writeInt(JOURNAL_MAGIC)
+                out.writeInt(JOURNAL_VERSION)
+                for ((key, entry) in entries) {
+                    out.writeByte(OP_PUT)
+                    out.writeEntry(key, entry)
+                }
+            }
+            if (!tmpFile.renameTo(journalFile)) {
+                throw IOException("Failed to rename $tmpFile to $journalFile")
+            }
+            journalRecordCount = entries.size
+            journalOut = DataOutputStream(BufferedOutputStream(FileOutputStream(journalFile, true)))
+        } catch (e: IOException) {
+            // Carry on without the journal, the next process will start with an empty cache
+            severe(CC_PRIVATE, e) { "Failed to write the HTTP cache journal" }
+            tmpFile.delete()
+        }
+    }
+
+    private fun appendToJournal(op: Int, writeRecord: DataOutputStream.() -> Unit) {
+        val out = journalOut ?: return
+        try {
+            out.writeByte(op)
+            out.writeRecord()
+            out.flush()
+        } catch (e: IOException) {
+            severe(CC_PRIVATE, e) { "Failed to append to the HTTP cache journal" }
+            closeJournal()
+            return
+        }
+        journalRecordCount++
+        if (journalRecordCount > entries.size + JOURNAL_SLACK_RECORDS) {
+            rewriteJournal()
+        }
+    }
+
+    private fun closeJournal() {
+        val out = journalOut ?: return
+        journalOut = null
+        try {
+            out.close()
+        } catch (e: IOException) {
+            severe(CC_PRIVATE, e) { "Failed to close the HTTP cache journal" }
+        }
+    }
+
+    private fun DataOutputStream.writeEntry(key: String, entry: Entry) {
+        writeUTF(key)
+        writeLong(entry.lastModified)
+        writeUTF(entry.etag ?: "")
+        writeUTF(entry.contentHash)
+        writeLong(entry.size)
+        writeLong(entry.lastAccess)
+        writeByte(entry.publications.size)
+        entry.publications.forEach { writeLong(it) }
+        writeLong(entry.freshUntil)
+    }
+
+    private fun DataInputStream.readEntry() = Entry(
+        lastModified = readLong(),
+        etag = readUTF().ifEmpty { null },
+        contentHash = readUTF(),
+        size = readLong(),
+        lastAccess = readLong(),
+        publications = LongArray(readByte().toInt()) { readLong() },
+        freshUntil = readLong()
+    )
+}
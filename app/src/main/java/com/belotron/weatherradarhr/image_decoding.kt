@@ -20,9 +20,14 @@ import android.graphics.Bitmap
 import android.graphics.Bitmap.CompressFormat.PNG
 import android.graphics.Bitmap.CompressFormat.WEBP_LOSSLESS
 import android.graphics.BitmapFactory
+import android.graphics.Rect
 import android.os.Build
+import androidx.annotation.ColorInt
 import com.belotron.weatherradarhr.gifdecode.Allocator
+import com.belotron.weatherradarhr.gifdecode.GifDecoder.sampledSize
 import java.io.ByteArrayOutputStream
+import java.util.zip.Deflater
+import java.util.zip.Inflater
 
 interface Frame {
     val timestamp: Long
@@ -30,12 +35,62 @@ interface Frame {
 
 interface FrameSequence<T : Frame> {
     val frames: MutableList<T>
-    fun intoDecoder(allocator: Allocator): FrameDecoder<T>
+    fun intoDecoder(allocator: Allocator): FrameDecoder<T> = intoDecoder(allocator, 1)
+
+    /**
+     * Returns a decoder that produces bitmaps scaled down by [sampleSize] in
+     * each dimension, taking every [sampleSize]-th pixel of every
+     * [sampleSize]-th row.
+     */
+    fun intoDecoder(allocator: Allocator, sampleSize: Int): FrameDecoder<T>
 }
 
 interface FrameDecoder<T : Frame> {
     val sequence: FrameSequence<T>
     fun getBitmap(frameIndex: Int): Bitmap
+
+    /**
+     * The number of frames the last request had to composite, in addition to
+     * the requested one, to reconstruct the requested frame. Zero for a
+     * decoder that reconstructs any frame on its own.
+     */
+    val lastSeekReplayCount: Int
+}
+
+/**
+ * A decoder that keeps painting the frames into the same bitmap, rewriting
+ * only the area that changed. FrameAnimator plays PaletteSequences and
+ * StdSequences, and PaletteDecoder is the one that does this.
+ */
+interface InPlaceFrameDecoder<T : Frame> : FrameDecoder<T> {
+    /**
+     * Prepares the image of the given frame. Doesn't touch the bitmap, so it
+     * can run on a background thread while the bitmap is on screen.
+     */
+    fun gotoFrame(frameIndex: Int)
+
+    /**
+     * Copies into the bitmap the area that changed since the last call, and
+     * reports that area in [dirty]. Returns the bitmap, which is always the
+     * same one.
+     */
+    fun updateBitmap(dirty: Rect): Bitmap
+
+    /**
+     * Hands over the bitmap, which the view may still be drawing, so that
+     * [dispose] doesn't release it. The caller then releases it to the
+     * allocator. Returns null if the decoder has no bitmap yet.
+     */
+    fun detachBitmap(): Bitmap?
+
+    /**
+     * Makes the decoder paint into the given bitmap, detached from an earlier
+     * decoder, instead of obtaining a new one. Returns false, and leaves the
+     * bitmap to the caller, if it doesn't fit or the decoder already has one.
+     */
+    fun reuseBitmap(bitmap: Bitmap): Boolean
+
+    fun dispose()
 }
 
 val <T : Frame> FrameDecoder<T>.frameCount: Int get() = sequence.frames.size
@@ -59,10 +114,14 @@ class StdFrame(
         }
     }
 
-    fun decode(allocator: Allocator): Bitmap {
+    val sizeInBytes: Int get() = imgBytes.size
+
+    fun decode(allocator: Allocator, sampleSize: Int = 1): Bitmap {
         return BitmapFactory.decodeByteArray(imgBytes, 0, imgBytes.size, BitmapFactory.Options().apply {
             inMutable = true
-            inBitmap = allocator.obtain(width, height, Bitmap.Config.ARGB_8888)
+            inSampleSize = sampleSize
+            inBitmap = allocator.obtain(
+                sampledSize(width, sampleSize), sampledSize(height, sampleSize), Bitmap.Config.ARGB_8888)
         })
     }
 }
@@ -70,15 +129,354 @@ class StdFrame(
 class StdSequence(
     override val frames: MutableList<StdFrame>,
 ) : FrameSequence<StdFrame> {
-    override fun intoDecoder(allocator: Allocator) = StdDecoder(allocator, this)
+    override fun intoDecoder(allocator: Allocator, sampleSize: Int) = StdDecoder(allocator, this, sampleSize)
+
+    val sizeInBytes: Long get() = frames.sumOf { it.sizeInBytes.toLong() }
 }
 
 class StdDecoder(
     private val allocator: Allocator,
     override val sequence: StdSequence,
+    private val sampleSize: Int = 1,
 ) : FrameDecoder<StdFrame> {
 
-    override fun getBitmap(frameIndex: Int): Bitmap = sequence.frames[frameIndex].decode(allocator)
+    override val lastSeekReplayCount get() = 0
+
+    override fun getBitmap(frameIndex: Int): Bitmap = sequence.frames[frameIndex].decode(allocator, sampleSize)
+}
+
+private const val MAX_PALETTE_SIZE = 256
+private const val MAX_NIBBLE_PALETTE_SIZE = 16
+private const val COLOR_TABLE_BITS = 9
+private const val COLOR_TABLE_SIZE = 1 shl COLOR_TABLE_BITS
+
+private const val NO_TIMESTAMP = Long.MIN_VALUE
+
+// Holds a palette index per pixel, one per byte or, with a 4-bit palette, two per byte.
+// The indices are deflated while the sequence is compacted, see PaletteSequence.compact().
+// changedArea is the area where the frame differs from the frame with the timestamp
+// changedSince.
+class PaletteFrame(
+    @Volatile internal var indices: ByteArray,
+    override val timestamp: Long,
+    internal val changedSince: Long = NO_TIMESTAMP,
+    internal val changedArea: Rect? = null,
+) : Frame
+
+class PaletteSequence(
+    val width: Int,
+    val height: Int,
+    @ColorInt internal val palette: IntArray,
+    private val bitsPerPixel: Int,
+    override val frames: MutableList<PaletteFrame>,
+) : FrameSequence<PaletteFrame> {
+    override fun intoDecoder(allocator: Allocator, sampleSize: Int) = PaletteDecoder(allocator, this, sampleSize)
+
+    // Size of a frame's index plane. A compacted frame's indices are smaller.
+    private val indicesSize = if (bitsPerPixel == 8) width * height else (width * height + 1) / 2
+
+    val sizeInBytes: Long get() = frames.sumOf { it.indices.size.toLong() }
+
+    val isCompacted: Boolean get() = frames.any { it.indices.size != indicesSize }
+
+    /**
+     * Deflates the index planes of all the frames. The frames can still be
+     * expanded, but each one has to be inflated first, so call [uncompact]
+     * before playing them. Returns the number of bytes freed.
+     */
+    @Synchronized
+    fun compact(): Long {
+        val sizeBefore = sizeInBytes
+        val deflater = Deflater(Deflater.BEST_SPEED)
+        val buf = ByteArray(indicesSize)
+        try {
+            for (frame in frames) {
+                val indices = frame.indices.takeIf { it.size == indicesSize } ?: continue
+                deflater.reset()
+                deflater.setInput(indices)
+                deflater.finish()
+                val deflatedSize = deflater.deflate(buf)
+                // Keep the frame as is if deflating doesn't make it smaller
+                if (deflater.finished() && deflatedSize < indicesSize) {
+                    frame.indices = buf.copyOf(deflatedSize)
+                }
+            }
+        } finally {
+            deflater.end()
+        }
+        return sizeBefore - sizeInBytes
+    }
+
+    @Synchronized
+    fun uncompact() {
+        for (frame in frames) {
+            frame.indices = inflatedIndices(frame.indices)
+        }
+    }
+
+    private fun indicesOf(frameIndex: Int): ByteArray = inflatedIndices(frames[frameIndex].indices)
+
+    private fun inflatedIndices(indices: ByteArray): ByteArray {
+        if (indices.size == indicesSize) {
+            return indices
+        }
+        val inflater = Inflater()
+        try {
+            inflater.setInput(indices)
+            return ByteArray(indicesSize).also { inflater.inflate(it) }
+        } finally {
+            inflater.end()
+        }
+    }
+
+    fun expandFrame(frameIndex: Int, @ColorInt pixels: IntArray) {
+        val indices = indicesOf(frameIndex)
+        val palette = palette
+        val pixelCount = width * height
+        if (bitsPerPixel == 8) {
+            for (i in 0 until pixelCount) {
+                pixels[i] = palette[indices[i].toInt() and 0xff]
+            }
+            return
+        }
+        var i = 0
+        for (packed in indices) {
+            pixels[i++] = palette[packed.toInt() and 0xf]
+            if (i < pixelCount) {
+                pixels[i++] = palette[(packed.toInt() shr 4) and 0xf]
+            }
+        }
+    }
+
+    // Returns the frame's palette indices, one per byte
+    internal fun unpackedIndices(frameIndex: Int): ByteArray {
+        val indices = indicesOf(frameIndex)
+        if (bitsPerPixel == 8) {
+            return indices
+        }
+        return ByteArray(width * height) { i -> ((indices[i shr 1].toInt() shr (4 * (i and 1))) and 0xf).toByte() }
+    }
+
+    // Expands just the given area of the frame
+    fun expandFrame(frameIndex: Int, @ColorInt pixels: IntArray, area: Rect) {
+        expandFrame(frameIndex, pixels, area, 1)
+    }
+
+    // Expands the given area of the frame scaled down by sampleSize. The area
+    // and the pixels are in the coordinates of the scaled-down image.
+    fun expandFrame(frameIndex: Int, @ColorInt pixels: IntArray, area: Rect, sampleSize: Int) {
+        val indices = indicesOf(frameIndex)
+        val palette = palette
+        val outWidth = sampledSize(width, sampleSize)
+        for (y in area.top until area.bottom) {
+            val srcRowStart = y * sampleSize * width
+            val outRowStart = y * outWidth
+            for (x in area.left until area.right) {
+                val i = srcRowStart + x * sampleSize
+                pixels[outRowStart + x] = palette[
+                    if (bitsPerPixel == 8) indices[i].toInt() and 0xff
+                    else (indices[i shr 1].toInt() shr (4 * (i and 1))) and 0xf
+                ]
+            }
+        }
+    }
+}
+
+class PaletteDecoder(
+    private val allocator: Allocator,
+    override val sequence: PaletteSequence,
+    private val sampleSize: Int = 1,
+) : InPlaceFrameDecoder<PaletteFrame> {
+    private val width = sampledSize(sequence.width, sampleSize)
+    private val height = sampledSize(sequence.height, sampleSize)
+    private val fullArea = Rect(0, 0, width, height)
+    @ColorInt private var canvas: IntArray? = null
+    private var bitmap: Bitmap? = null
+    private var canvasTimestamp = NO_TIMESTAMP
+    private val pendingDirty = Rect()
+    private val changedArea = Rect()
+
+    // Each frame holds all its palette indices, so no frame depends on another
+    override val lastSeekReplayCount get() = 0
+
+    override fun gotoFrame(frameIndex: Int) {
+        val canvas = canvas ?: allocator.obtainIntArray(width * height).also { canvas = it }
+        val frame = sequence.frames[frameIndex]
+        if (frame.timestamp == canvasTimestamp) {
+            return
+        }
+        val area = frame.changedArea?.takeIf { frame.changedSince == canvasTimestamp }
+            ?.let { toSampledArea(it) }
+            ?: fullArea
+        when {
+            area == fullArea && sampleSize == 1 -> sequence.expandFrame(frameIndex, canvas)
+            else -> sequence.expandFrame(frameIndex, canvas, area, sampleSize)
+        }
+        pendingDirty.union(area)
+        canvasTimestamp = frame.timestamp
+    }
+
+    override fun updateBitmap(dirty: Rect): Bitmap {
+        val width = width
+        val bitmap = bitmap ?: allocator.obtain(width, height, Bitmap.Config.ARGB_8888).also {
+            it.setHasAlpha(true)
+            bitmap = it
+            pendingDirty.set(fullArea)
+        }
+        val canvas = canvas
+        if (canvas == null || pendingDirty.isEmpty) {
+            dirty.setEmpty()
+            return bitmap
+        }
+        with(pendingDirty) {
+            bitmap.setPixels(canvas, top * width + left, width, left, top, width(), height())
+        }
+        dirty.set(pendingDirty)
+        pendingDirty.setEmpty()
+        return bitmap
+    }
+
+    override fun detachBitmap(): Bitmap? = bitmap.also { bitmap = null }
+
+    override fun reuseBitmap(bitmap: Bitmap): Boolean {
+        if (this.bitmap != null || bitmap.width != width || bitmap.height != height) {
+            return false
+        }
+        this.bitmap = bitmap
+        pendingDirty.set(fullArea)
+        return true
+    }
+
+    override fun dispose() {
+        canvas?.also { allocator.release(it) }
+        canvas = null
+        bitmap?.also { allocator.release(it) }
+        bitmap = null
+        canvasTimestamp = NO_TIMESTAMP
+    }
+
+    override fun getBitmap(frameIndex: Int): Bitmap {
+        val width = width
+        val height = height
+        val pixels = allocator.obtainIntArray(width * height)
+        try {
+            if (sampleSize == 1) {
+                sequence.expandFrame(frameIndex, pixels)
+            } else {
+                sequence.expandFrame(frameIndex, pixels, fullArea, sampleSize)
+            }
+            return allocator.obtain(width, height, Bitmap.Config.ARGB_8888).apply {
+                setHasAlpha(true)
+                setPixels(pixels, 0, width, 0, 0, width, height)
+            }
+        } finally {
+            allocator.release(pixels)
+        }
+    }
+
+    // Maps an area of the full-size image to the scaled-down pixels sampled from it
+    private fun toSampledArea(area: Rect): Rect = changedArea.apply {
+        set(sampledSize(area.left, sampleSize), sampledSize(area.top, sampleSize),
+            sampledSize(area.right, sampleSize), sampledSize(area.bottom, sampleSize))
+    }
+}
+
+/**
+ * Collects the colors of the frames it's given into a palette of at most 256
+ * colors, turning each frame into a plane of palette indices. Starting from
+ * the palette of an earlier sequence keeps that sequence's index planes valid.
+ */
+class PaletteBuilder(@ColorInt initialPalette: IntArray = IntArray(0)) {
+    @ColorInt private val palette = IntArray(MAX_PALETTE_SIZE)
+    private var paletteSize = 0
+
+    // Open-addressing hashtable from color to its index in the palette
+    @ColorInt private val tableColors = IntArray(COLOR_TABLE_SIZE)
+    private val tableIndices = ShortArray(COLOR_TABLE_SIZE) { -1 }
+
+    init {
+        initialPalette.forEach { indexOf(it) }
+    }
+
+    // Returns null if the frame has a color that doesn't fit into the palette
+    fun toPaletteFrame(@ColorInt pixels: IntArray, pixelCount: Int, timestamp: Long): PaletteFrame? {
+        val indices = ByteArray(pixelCount)
+        // Radar images have long runs of the same color, remember the last lookup
+        var lastColor = 0
+        var lastIndex = -1
+        for (i in 0 until pixelCount) {
+            val color = pixels[i]
+            if (color != lastColor || lastIndex < 0) {
+                lastIndex = indexOf(color)
+                if (lastIndex < 0) {
+                    return null
+                }
+                lastColor = color
+            }
+            indices[i] = lastIndex.toByte()
+        }
+        return PaletteFrame(indices, timestamp)
+    }
+
+    // Records where each frame differs from the one before it, and packs two
+    // pixels per byte if the palette allows it
+    fun buildSequence(width: Int, height: Int, frames: List<PaletteFrame>): PaletteSequence {
+        val palette = palette.copyOf(paletteSize)
+        val bitsPerPixel = if (paletteSize > MAX_NIBBLE_PALETTE_SIZE) 8 else 4
+        val builtFrames = frames.mapIndexedTo(mutableListOf()) { i, frame ->
+            val previous = frames.getOrNull(i - 1)
+            val indices = frame.indices
+            PaletteFrame(
+                if (bitsPerPixel == 8) indices else packNibbles(indices),
+                frame.timestamp,
+                previous?.timestamp ?: NO_TIMESTAMP,
+                previous?.let { changedArea(width, it.indices, indices) }
+            )
+        }
+        return PaletteSequence(width, height, palette, bitsPerPixel, builtFrames)
+    }
+
+    private fun packNibbles(indices: ByteArray): ByteArray {
+        val packed = ByteArray((indices.size + 1) / 2)
+        for (i in indices.indices) {
+            packed[i shr 1] = (packed[i shr 1].toInt() or (indices[i].toInt() shl (4 * (i and 1)))).toByte()
+        }
+        return packed
+    }
+
+    // Returns the bounding box of the pixels that differ
+    private fun changedArea(width: Int, previous: ByteArray, current: ByteArray): Rect {
+        val area = Rect()
+        for (i in current.indices) {
+            if (current[i] != previous[i]) {
+                val x = i % width
+                val y = i / width
+                area.union(x, y, x + 1, y + 1)
+            }
+        }
+        return area
+    }
+
+    private fun indexOf(@ColorInt color: Int): Int {
+        var slot = (color * -0x61c88647) ushr (32 - COLOR_TABLE_BITS)
+        while (true) {
+            val index = tableIndices[slot].toInt()
+            if (index < 0) {
+                break
+            }
+            if (tableColors[slot] == color) {
+                return index
+            }
+            slot = (slot + 1) and (COLOR_TABLE_SIZE - 1)
+        }
+        if (paletteSize == MAX_PALETTE_SIZE) {
+            return -1
+        }
+        tableColors[slot] = color
+        tableIndices[slot] = paletteSize.toShort()
+        palette[paletteSize] = color
+        return paletteSize++
+    }
 }
 
 fun Bitmap.toCompressedBytes(): ByteArray =
@@ -21,6 +21,7 @@ import android.graphics.Bitmap
 import android.graphics.BitmapFactory
 import com.belotron.weatherradarhr.CcOption.CC_PRIVATE
 import com.belotron.weatherradarhr.FetchPolicy.*
+import com.belotron.weatherradarhr.gifdecode.GifIndex
 import com.belotron.weatherradarhr.gifdecode.GifParser
 import com.belotron.weatherradarhr.gifdecode.GifSequence
 import kotlinx.coroutines.CompletableDeferred
@@ -28,40 +29,52 @@ import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers.IO
 import kotlinx.coroutines.NonCancellable
 import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.currentCoroutineContext
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.ensureActive
 import kotlinx.coroutines.isActive
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
 import kotlinx.coroutines.withTimeout
-import java.io.ByteArrayOutputStream
+import java.io.Closeable
 import java.io.File
+import java.io.FileNotFoundException
 import java.io.IOException
 import java.io.InputStream
+import java.io.RandomAccessFile
 import java.lang.Integer.parseInt
-import java.lang.Thread.sleep
 import java.net.HttpURLConnection
 import java.net.URL
+import java.nio.ByteBuffer
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel.MapMode.READ_ONLY
+import java.nio.channels.FileChannel.MapMode.READ_WRITE
+import java.nio.channels.ReadableByteChannel
 import java.nio.charset.StandardCharsets
-import java.time.ZonedDateTime
-import java.time.format.DateTimeFormatter
-import java.time.format.DateTimeParseException
-import java.util.*
+import java.nio.file.Files
+import java.util.concurrent.atomic.AtomicInteger
 import kotlin.coroutines.cancellation.CancellationException
 import kotlin.text.Charsets.UTF_8
 
-private const val DEFAULT_LAST_MODIFIED_STR = "Thu, 01 Jan 1970 00:00:00 GMT"
-private const val NO_CACHE_LAST_MODIFIED = "no-cache"
 private const val FILENAME_SUBSTITUTE_CHAR = ":"
-private const val HTTP_CACHE_DIR = "httpcache"
+private const val HTTP_CACHE_MAX_BYTES = 48L * 1024 * 1024
+private const val FRESHNESS_MARGIN_MILLIS = 30_000L
 private const val CONNECT_TIMEOUT_MILLIS = 30_000
 private const val RECEIVE_FIRST_BYTE_TIMEOUT_MILLIS = 15_000
 private const val FETCH_TIMEOUT_MILLIS = 120_000L
 private const val RESUME_DELAY_MILLIS = 2_000L
+private const val MAX_RESUME_ATTEMPTS = 3
+private const val PARTIAL_META_VERSION = 2
+// Recorded while the body is arriving: the length of the .partial file tells how much arrived
+private const val UNKNOWN_RECEIVED_BYTES = -1L
+private const val MAX_IDLE_CONNECTIONS = 8
+private const val KEEP_ALIVE_MILLIS = 5 * 60_000L
+private const val TRANSFER_BUFFER_SIZE = 16 * 1024
+private const val USER_AGENT = "weather-radar-hr github.com/nicktopol/weather-radar-hr"
 
-val CACHE_LOCK = Object()
+private val growingFileCounter = AtomicInteger()
 private val filenameCharsToAvoidRegex = """[\\|/$?*]""".toRegex()
 private val lastModifiedRegex = """\w{3}, \d{2} \w{3} \d{4} \d{2}:(\d{2}):(\d{2}) GMT""".toRegex()
-private val lastModifiedDateFormat = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss z", Locale.US)
-private val defaultLastModified = ZonedDateTime.parse(DEFAULT_LAST_MODIFIED_STR, lastModifiedDateFormat).toInstant().toEpochMilli()
 
 enum class FetchPolicy { UP_TO_DATE, PREFER_CACHED, ONLY_IF_NEW, ONLY_CACHED }
 
@@ -71,17 +84,129 @@ class ImageFetchException(val cached: Any?, cause: Throwable? = null) : Exceptio
 
 class HttpErrorResponse(val responseCode: Int) : Exception()
 
-suspend fun fetchGifSequence(context: Context, url: String, fetchPolicy: FetchPolicy): GifSequence? =
-    context.fetchImg(url, fetchPolicy, GifParser::parse).second
+// What a fetch decodes the response into. Fetches of the same URL into the same
+// kind of result can share the result.
+private enum class ResultKind { GIF_SEQUENCE, BITMAP, BYTES, STRING }
 
-suspend fun fetchBitmap(context: Context, url: String, fetchPolicy: FetchPolicy): Pair<Long, Bitmap?> =
-        context.fetchImg(url, fetchPolicy) { BitmapFactory.decodeByteArray(it, 0, it.size) }
+// The result of a fetch. The version tells the response apart from other
+// versions of the same URL, see versionOf().
+private class Fetched<out T>(val lastModified_mmss: Long, val version: Long, val value: T?) {
+    fun toPair() = Pair(lastModified_mmss, value)
+}
+
+private class InFlightFetch(val fetchPolicy: FetchPolicy, val knownVersion: Long) {
+    val result = CompletableDeferred<Fetched<Any?>>()
+
+    // A fetch can serve another one with the same policy, provided both callers
+    // already have the same version, if any. A caller that prefers the cached
+    // result doesn't join an up-to-date fetch, that would make it wait for the
+    // network.
+    fun canServe(otherPolicy: FetchPolicy, otherKnownVersion: Long) =
+        otherKnownVersion == knownVersion && otherPolicy == fetchPolicy
+}
+
+private val inFlightFetches = HashMap<Pair<String, ResultKind>, InFlightFetch>()
+
+/**
+ * Sizes the process-wide pool of idle connections that backs HttpURLConnection.
+ * Must be called before the first request.
+ */
+fun configureConnectionPool() {
+    System.setProperty("http.keepAlive", "true")
+    System.setProperty("http.maxConnections", MAX_IDLE_CONNECTIONS.toString())
+    System.setProperty("http.keepAliveDuration", KEEP_ALIVE_MILLIS.toString())
+}
+
+/**
+ * All requests go through this function. HttpURLConnection reuses a pooled
+ * connection to the same host, as long as the previous response body was read
+ * to the end and closed, and the connection wasn't disconnected. So, instead of
+ * calling [HttpURLConnection.disconnect], call [release] when done.
+ */
+private fun openConnection(url: String): HttpURLConnection =
+    (URL(url).openConnection() as HttpURLConnection).apply {
+        connectTimeout = CONNECT_TIMEOUT_MILLIS
+        readTimeout = RECEIVE_FIRST_BYTE_TIMEOUT_MILLIS
+        setRequestProperty("User-Agent", USER_AGENT)
+    }
+
+// After a complete exchange, reads and closes the rest of the response body, which
+// returns the connection to the pool. Otherwise, e.g. after an error, closes the connection.
+private fun HttpURLConnection.release(isExchangeComplete: Boolean) {
+    if (!isExchangeComplete) {
+        try {
+            disconnect()
+        } catch (e: Exception) {
+            severe(e) { "Error when closing connection" }
+        }
+        return
+    }
+    try {
+        val body = if (responseCode >= 400) errorStream else inputStream
+        body?.use { it.skip(Long.MAX_VALUE) }
+    } catch (e: IOException) {
+        // The connection is broken and won't get pooled
+        debug { "Error releasing connection: $e" }
+    }
+}
+
+/**
+ * Sets up the index of the HTTP cache, which loads lazily on the first request.
+ */
+fun Context.initHttpCache() {
+    HttpCacheIndex.init(fileInCache(HTTP_CACHE_DIR), HTTP_CACHE_MAX_BYTES, FRESHNESS_MARGIN_MILLIS)
+}
+
+/**
+ * Returns Pair(version, sequence).
+ *
+ * If you pass a [frameListener], the GIF gets parsed while it's downloading,
+ * and the listener receives each frame as soon as it has arrived.
+ *
+ * If you pass the version of the GIF you already have, and the content is
+ * still the same, the GIF doesn't get parsed and the returned sequence is
+ * null. That holds even if the server sent the GIF again. Since the GIF must
+ * arrive in full to tell, it doesn't get parsed while it's downloading.
+ *
+ * If you pass how often the server publishes a new GIF, the cached one gets
+ * used without asking the server until the next one is due.
+ */
+suspend fun fetchGifSequence(
+    context: Context, url: String, fetchPolicy: FetchPolicy, frameListener: GifParser.FrameListener? = null,
+    knownVersion: Long = NO_VERSION, publicationPeriodMillis: Long = UNKNOWN_PUBLICATION_PERIOD
+): Pair<Long, GifSequence?> =
+    context.fetchImg(url, fetchPolicy, ResultKind.GIF_SEQUENCE, GifParser::parse, frameListener?.let { listener ->
+        { input: ReadableByteChannel, body: ByteBuffer ->
+            GifParser.streaming(input, body, listener).parseStream()
+        }
+    }, ::parseCachedGif, knownVersion, publicationPeriodMillis).let { Pair(it.version, it.value) }
+
+// Uses the GIF's sidecar index, if it's up to date, to avoid scanning the GIF
+private fun parseCachedGif(cacheFile: File, body: ByteBuffer): GifSequence {
+    val indexFile = cacheFile.gifIndexFile
+    val sourceStamp = cacheFile.lastModified()
+    runOrNull { GifIndex.read(indexFile, sourceStamp, body) }?.also { return it }
+    return GifParser.parse(body).also { gifSequence ->
+        try {
+            GifIndex.write(gifSequence, body.remaining(), sourceStamp, indexFile)
+        } catch (e: IOException) {
+            severe(CC_PRIVATE, e) { "Failed to write GIF index $indexFile" }
+        }
+    }
+}
+
+suspend fun fetchBitmap(
+        context: Context, url: String, fetchPolicy: FetchPolicy,
+        publicationPeriodMillis: Long = UNKNOWN_PUBLICATION_PERIOD
+): Pair<Long, Bitmap?> =
+        context.fetchImg(url, fetchPolicy, ResultKind.BITMAP, { BitmapFactory.decodeByteArray(it, 0, it.size) },
+            publicationPeriodMillis = publicationPeriodMillis).toPair()
 
 suspend fun fetchBytes(context: Context, url: String, fetchPolicy: FetchPolicy): Pair<Long, ByteArray?> =
-        context.fetchImg(url, fetchPolicy) { it }
+        context.fetchImg(url, fetchPolicy, ResultKind.BYTES) { it }.toPair()
 
 suspend fun fetchString(context: Context, url: String, fetchPolicy: FetchPolicy): Pair<Long, String?> =
-        context.fetchImg(url, fetchPolicy) { String(it, StandardCharsets.UTF_8) }
+        context.fetchImg(url, fetchPolicy, ResultKind.STRING) { String(it, StandardCharsets.UTF_8) }.toPair()
 
 /**
  * The returned object may be `null` only with the [ONLY_IF_NEW] or [ONLY_CACHED]
@@ -89,13 +214,67 @@ suspend fun fetchString(context: Context, url: String, fetchPolicy: FetchPolicy)
  *
  * In the case of an error, the function throws [ImageFetchException] which
  * holds a cached byte array, if available.
+ *
+ * If a fetch of the same URL into the same kind of result is already running,
+ * waits for its result instead of starting another download. The result is
+ * then shared by both callers.
  */
 private suspend fun <T> Context.fetchImg(
-        url: String, fetchPolicy: FetchPolicy, decode: (ByteArray) -> T
-): Pair<Long, T?> {
+        url: String, fetchPolicy: FetchPolicy, resultKind: ResultKind, decode: (ByteArray) -> T,
+        decodeStream: ((ReadableByteChannel, ByteBuffer) -> T)? = null,
+        decodeCached: ((File, ByteBuffer) -> T)? = null,
+        knownVersion: Long = NO_VERSION,
+        publicationPeriodMillis: Long = UNKNOWN_PUBLICATION_PERIOD
+): Fetched<T> {
+    val key = Pair(url, resultKind)
+    while (true) {
+        val ownFetch = InFlightFetch(fetchPolicy, knownVersion)
+        val runningFetch = synchronized(inFlightFetches) {
+            val running = inFlightFetches[key]
+            if (running == null) {
+                inFlightFetches[key] = ownFetch
+            }
+            running
+        }
+        if (runningFetch == null || !runningFetch.canServe(fetchPolicy, knownVersion)) {
+            val isRegistered = runningFetch == null
+            try {
+                return fetchImgUncoalesced(
+                    url, fetchPolicy, decode, decodeStream, decodeCached, knownVersion, publicationPeriodMillis
+                ).also {
+                    ownFetch.result.complete(it)
+                }
+            } catch (e: Throwable) {
+                ownFetch.result.completeExceptionally(e)
+                throw e
+            } finally {
+                if (isRegistered) synchronized(inFlightFetches) {
+                    inFlightFetches.remove(key)
+                }
+            }
+        }
+        info { "Joining the running fetch of $url" }
+        try {
+            @Suppress("UNCHECKED_CAST")
+            return runningFetch.result.await() as Fetched<T>
+        } catch (e: CancellationException) {
+            // If it's the other fetch that got cancelled, try again
+            currentCoroutineContext().ensureActive()
+        }
+    }
+}
+
+private suspend fun <T> Context.fetchImgUncoalesced(
+        url: String, fetchPolicy: FetchPolicy, decode: (ByteArray) -> T,
+        decodeStream: ((ReadableByteChannel, ByteBuffer) -> T)?,
+        decodeCached: ((File, ByteBuffer) -> T)?,
+        knownVersion: Long,
+        publicationPeriodMillis: Long
+): Fetched<T> {
     val context = this
     return coroutineScope {
-        val exchange = Exchange(context, this, url, fetchPolicy, decode)
+        val exchange = Exchange(
+            context, this, url, fetchPolicy, decode, decodeStream, decodeCached, knownVersion, publicationPeriodMillis)
         val doneSignal = CompletableDeferred<Unit>()
         launch {
             try {
@@ -120,20 +299,30 @@ private suspend fun <T> Context.fetchImg(
     }
 }
 
-class Exchange<out T>(
+private class Exchange<out T>(
         private val context: Context,
         private val coroScope: CoroutineScope,
         private val url: String,
         private val fetchPolicy: FetchPolicy,
-        private val decode: (ByteArray) -> T
+        private val decode: (ByteArray) -> T,
+        // Decodes the response body while it's arriving from the channel into the buffer,
+        // which is exactly as large as the body
+        private val decodeStream: ((ReadableByteChannel, ByteBuffer) -> T)? = null,
+        // Decodes the cached response body, mapped into memory from the cache file
+        private val decodeCached: ((File, ByteBuffer) -> T)? = null,
+        // The version the caller already has. If the cache or the response holds
+        // the same content, there's no need to decode it.
+        private val knownVersion: Long = NO_VERSION,
+        // How often the server publishes a new response, see HttpCacheIndex.put()
+        private val publicationPeriodMillis: Long = UNKNOWN_PUBLICATION_PERIOD
 ) {
     @Volatile
     var inputStream: InputStream? = null
 
-    suspend fun proceed(): Pair<Long, T?> {
+    suspend fun proceed(): Fetched<T> {
         if (fetchPolicy == ONLY_CACHED) {
             withContext(IO) { loadCachedResult() }?.also { return it }
-            return Pair(0L, null)
+            return Fetched(0L, NO_VERSION, null)
         }
         if (fetchPolicy == PREFER_CACHED) {
             try {
@@ -142,32 +331,75 @@ class Exchange<out T>(
                 severe(CC_PRIVATE, e) { "Error loading cached image for $url" }
             }
         }
+        if (fetchPolicy == UP_TO_DATE || fetchPolicy == ONLY_IF_NEW) {
+            // Until the next publication is due, the server would just say 304 Not Modified
+            if (withContext(IO) { HttpCacheIndex.isFresh(cacheKey(url)) }) {
+                info { "Cached response is fresh, not asking the server: $url" }
+                if (fetchPolicy == ONLY_IF_NEW) {
+                    return Fetched(0L, NO_VERSION, null)
+                }
+                withContext(IO) { loadCachedResult() }?.also { return it }
+            }
+        }
         return withContext(IO) {
+            val cacheFile = context.cacheFile(url)
+            // Only one download at a time can write into the URL's .partial file
+            val ownsPartialFile = claimPartialFile(cacheFile)
             var conn: HttpURLConnection? = null
+            var isExchangeComplete = false
             try {
-                conn = URL(url).openConnection() as HttpURLConnection
-                conn.connectTimeout = CONNECT_TIMEOUT_MILLIS
-                conn.readTimeout = RECEIVE_FIRST_BYTE_TIMEOUT_MILLIS
-                conn.setRequestProperty("User-Agent", "weather-radar-hr github.com/nicktopol/weather-radar-hr")
-                val ifModifiedSince = loadCachedLastModified(url)
+                val partial = if (ownsPartialFile) runOrNull { loadPartialDownload(cacheFile) } else null
+                conn = openConnection(url)
+                val cachedEntry = HttpCacheIndex[cacheKey(url)]
+                val ifModifiedSince = cachedEntry?.lastModified?.takeIf { it != NO_CACHE_EPOCH }?.let(::formatLastModified)
                 ifModifiedSince?.let { conn.addRequestProperty("If-Modified-Since", it) }
+                cachedEntry?.etag?.let { conn.addRequestProperty("If-None-Match", it) }
+                partial?.also {
+                    info { "Resuming download from byte ${it.receivedBytes}: $url" }
+                    conn.addRequestProperty("Range", "bytes=${it.receivedBytes}-")
+                    conn.addRequestProperty("If-Range", it.resumeInfo.validator)
+                }
                 conn.connect()
                 if (!coroScope.isActive) {
                     throw CancellationException()
                 }
-                when {
+                if (conn.responseCode == 304) {
+                    HttpCacheIndex.revalidated(
+                        cacheFile.name, conn.getHeaderField("Cache-Control") ?: "", publicationPeriodMillis)
+                }
+                val result = when {
                     conn.responseCode == 200 -> {
-                        conn.handleSuccessResponse()
+                        if (partial != null) {
+                            info { "Content changed since the partial download, starting over: $url" }
+                            discardPartialDownload(cacheFile)
+                        }
+                        conn.handleSuccessResponse(null, ownsPartialFile)
+                    }
+                    conn.responseCode == 206 && partial != null -> {
+                        conn.handleSuccessResponse(partial, ownsPartialFile)
+                    }
+                    conn.responseCode == 416 && partial != null -> {
+                        warn { "Server rejected the range of the partial download, discarding it: $url" }
+                        discardPartialDownload(cacheFile)
+                        throw HttpErrorResponse(conn.responseCode)
                     }
                     conn.responseCode != 304 ->
                         throw HttpErrorResponse(conn.responseCode)
                     fetchPolicy == ONLY_IF_NEW -> // responseCode == 304, but onlyIfNew is set so don't fetch from cache
-                        Pair(0L, null)
+                        Fetched(0L, NO_VERSION, null)
                     else -> { // responseCode == 304, fetch from cache
                         info { "Not Modified since $ifModifiedSince: $url" }
-                        loadCachedResult() ?: Exchange(context, coroScope, url, UP_TO_DATE, decode).proceed()
+                        loadCachedResult() ?: run {
+                            // Without the index entry, the retry won't be conditional
+                            HttpCacheIndex.remove(cacheKey(url))
+                            Exchange(context, coroScope, url, UP_TO_DATE, decode, decodeStream, decodeCached,
+                                knownVersion, publicationPeriodMillis
+                            ).proceed()
+                        }
                     }
                 }
+                isExchangeComplete = true
+                result
             } catch (e: CancellationException) {
                 throw e
             } catch (e: Exception) {
@@ -181,131 +413,201 @@ class Exchange<out T>(
                     e
                 )
             } finally {
-                try {
-                    conn?.disconnect()
-                } catch (e: Exception) {
-                    severe(e) { "Error when closing connection" }
+                conn?.release(isExchangeComplete)
+                if (ownsPartialFile) {
+                    unclaimPartialFile(cacheFile)
                 }
             }
         }
     }
 
-    private fun HttpURLConnection.handleSuccessResponse(): Pair<Long, T> {
+    // The response is either 200 OK, or 206 Partial Content that continues the resumed download
+    private suspend fun HttpURLConnection.handleSuccessResponse(
+        resumed: PartialDownload?, ownsPartialFile: Boolean
+    ): Fetched<T> {
 //        if (java.util.concurrent.ThreadLocalRandom.current().nextInt(100) < 10) {
 //            sleep(3_000)
 //            throw IOException("Fake exception")
 //        }
-        val acceptsByteRange = (getHeaderField("Accepts-Ranges") ?: "none") == "bytes"
-        val contentLength = getHeaderFieldInt("Content-Length", -1)
-        val lastModifiedStr = getHeaderField("Last-Modified") ?: DEFAULT_LAST_MODIFIED_STR
+        val cacheFile = context.cacheFile(url)
+        val contentLength = if (resumed == null) getHeaderFieldInt("Content-Length", -1) else {
+            // Content-Range: bytes <first>-<last>/<complete length>
+            val contentRange = getHeaderField("Content-Range")
+            val completeLength = contentRange?.substringAfterLast('/')?.toIntOrNull()
+            if (completeLength != resumed.resumeInfo.contentLength) {
+                discardPartialDownload(cacheFile)
+                throw IOException("Content-Range '$contentRange' doesn't match the partial download" +
+                        " of ${resumed.resumeInfo.contentLength} bytes")
+            }
+            completeLength
+        }
+        // The validator matched, so the headers of the original response still hold
+        val lastModifiedStr = resumed?.resumeInfo?.lastModifiedStr
+            ?: getHeaderField("Last-Modified") ?: DEFAULT_LAST_MODIFIED_STR
+        val etag = resumed?.resumeInfo?.etag ?: getHeaderField("ETag")
+        val acceptsByteRange = resumed != null || (getHeaderField("Accept-Ranges") ?: "none") == "bytes"
+        val resumeInfo = ResumeInfo(lastModifiedStr, etag, contentLength)
+            .takeIf { acceptsByteRange && contentLength > 0 && it.validator != null }
         val cacheControl = getHeaderField("Cache-Control") ?: ""
         val noCache = "no-cache" in cacheControl
         val lastModifiedForCache = if (noCache) NO_CACHE_LAST_MODIFIED else lastModifiedStr
         val fetchedLastModified = lastModifiedStr.parseLastModified()
-        val responseBody = lazy {
-            this@Exchange.inputStream = inputStream
-            try {
-                inputStream.use { it.readBytes() }
-            } finally {
-                this@Exchange.inputStream = null
-            }
-        }
         info { "Fetching content of length $contentLength, Last-Modified $lastModifiedStr: $url" }
-        val cachedIn = runOrNull { context.cachedDataIn(url.toExternalForm()) }
-        val decodedImage = if (noCache || cachedIn == null) {
-            cachedIn?.close()
-            ensureFullContentAndUpdateCache(responseBody.value, contentLength, acceptsByteRange, lastModifiedStr, lastModifiedForCache)
-        } else {
-            // These checks are repeated in updateCache(). While the response body is being
-            // loaded, another thread could write a newer cached image.
-            val cachedLastModified = runOrNull { cachedIn.readUTF().parseLastModified() }
-            if (cachedLastModified == null || cachedLastModified < fetchedLastModified) {
-                cachedIn.close()
-                ensureFullContentAndUpdateCache(responseBody.value, contentLength, acceptsByteRange, lastModifiedStr, lastModifiedForCache)
-            } else { // cachedLastModified >= fetchedLastModified, can happen with concurrent requests
-                inputStream.close()
-                cachedIn.use { it.readBytes() }.parseOrInvalidateImage()
+        // This check is repeated in GrowingCacheFile.commit(). While the response body
+        // is arriving, another thread could write a newer cached image.
+        val cachedLastModified = if (noCache) null else cachedLastModified(cacheFile)
+        val (version, decodedImage) = if (cachedLastModified != null && cachedLastModified >= fetchedLastModified) {
+            // Can happen with concurrent requests
+            inputStream.close()
+            if (resumed != null) {
+                discardPartialDownload(cacheFile)
             }
+            val (cachedEntry, cachedImage) = loadCached()
+            Pair(cachedEntry.version, cachedImage)
+        } else {
+            val isResumable = ownsPartialFile && resumeInfo != null
+            GrowingCacheFile(
+                cacheFile, lastModifiedForCache, etag, cacheControl, publicationPeriodMillis, isResumable, resumed)
+                .use { growingFile ->
+                    try {
+                        receiveAndDecode(growingFile, contentLength, resumeInfo)
+                    } catch (e: Exception) {
+                        // Includes cancellation. An image that fails to decode isn't worth resuming.
+                        if (resumeInfo != null && e !is ImageDecodeException) {
+                            growingFile.keepAsPartial(resumeInfo)
+                        }
+                        throw e
+                    }
+                }
         }
-        return Pair(parseLastModified_mmss(lastModifiedStr), decodedImage)
+        return Fetched(parseLastModified_mmss(lastModifiedStr), version, decodedImage)
     }
 
-    private fun ensureFullContentAndUpdateCache(
-        bytes: ByteArray,
-        contentLength: Int,
-        acceptsByteRange: Boolean,
-        lastModifiedStr: String,
-        lastModifiedForCache: String
-    ): T {
+    // Writes the response body into the growing cache file, decodes it, and makes
+    // the growing file the new cache file. A GIF that gets decoded while it's
+    // arriving is read from the cache file's memory mapping, so the response body
+    // never gets buffered on the heap. Returns Pair(version, image), the image is
+    // null if it's the version the caller already has.
+    private suspend fun HttpURLConnection.receiveAndDecode(
+        growingFile: GrowingCacheFile, contentLength: Int, resumeInfo: ResumeInfo?
+    ): Pair<Long, T?> {
+        val decodeStream = decodeStream
+        if (decodeStream != null && contentLength > 0 && knownVersion == NO_VERSION) {
+            // With a resumed download, the buffer already holds the received part
+            val body = growingFile.mapBody(contentLength)
+            val decodedImage = consumeBody { decodeStream(it, body) }
+            if (!coroScope.isActive) throw CancellationException()
+            growingFile.commit()
+            return Pair(growingFile.version, decodedImage)
+        }
+        resumeInfo?.also { growingFile.startResumable(it) }
+        receiveFullBody(growingFile, contentLength, resumeInfo)
         if (!coroScope.isActive) throw CancellationException()
-        if (bytes.size >= contentLength) {
-            return decode(bytes).also {
-                updateCache(context.cacheFile(url), lastModifiedForCache, bytes)
-            }
-        } else if (!acceptsByteRange) {
-            throw IOException("Incomplete content and the server doesn't support byte ranges." +
-                    " Expected $contentLength bytes, got ${bytes.size}.")
+        val version = growingFile.version
+        if (version == knownVersion) {
+            info { "Content unchanged, not decoding it: $url" }
+            growingFile.commit()
+            return Pair(version, null)
+        }
+        if (decodeCached != null) {
+            growingFile.commit()
+            val (cachedEntry, cachedImage) = loadCached()
+            return Pair(cachedEntry.version, cachedImage)
         }
-        val bos = ByteArrayOutputStream()
-        bos.write(bytes)
+        return Pair(version, decode(growingFile.readBody()).also {
+            growingFile.commit()
+        })
+    }
+
+    // If the body arrives incomplete, resumes the download a few times. If that doesn't
+    // work out either, the caller keeps what arrived for a later request to resume.
+    private suspend fun HttpURLConnection.receiveFullBody(
+        growingFile: GrowingCacheFile, contentLength: Int, resumeInfo: ResumeInfo?
+    ) {
+        consumeBody { growingFile.append(it) }
         var attemptCount = 1
-        while (bos.size() < contentLength) {
-            attemptCount += 1
-            if (!coroScope.isActive) throw CancellationException()
-            sleep(RESUME_DELAY_MILLIS)
-            warn { "Incomplete content (${bytes.size} of $contentLength), resuming download" }
-            if (!coroScope.isActive) throw CancellationException()
+        while (growingFile.bodySize < contentLength) {
+            if (resumeInfo == null) {
+                throw IOException("Incomplete content and the download can't be resumed." +
+                        " Expected $contentLength bytes, got ${growingFile.bodySize}.")
+            }
+            if (attemptCount == MAX_RESUME_ATTEMPTS) {
+                throw IOException("Incomplete content after $attemptCount attempts." +
+                        " Expected $contentLength bytes, got ${growingFile.bodySize}.")
+            }
+            attemptCount++
+            delay(RESUME_DELAY_MILLIS)
+            warn { "Incomplete content (${growingFile.bodySize} of $contentLength), resuming download" }
             var conn: HttpURLConnection? = null
+            var isExchangeComplete = false
             try {
-                conn = URL(url).openConnection() as HttpURLConnection
-                conn.setRequestProperty("User-Agent", "weather-radar-hr github.com/nicktopol/weather-radar-hr")
-                conn.addRequestProperty("Range", "bytes=${bos.size()}-${contentLength - 1}")
+                conn = openConnection(url)
+                conn.addRequestProperty("Range", "bytes=${growingFile.bodySize}-")
+                conn.addRequestProperty("If-Range", resumeInfo.validator)
                 conn.connect()
                 if (!coroScope.isActive) throw CancellationException()
-                if (conn.responseCode >= 300) continue
-                val newLastModifiedStr = conn.getHeaderField("Last-Modified") ?: DEFAULT_LAST_MODIFIED_STR
-                if (newLastModifiedStr != lastModifiedStr) {
-                    throw IOException("Content changed while resuming download")
-                }
-                val inputStream = conn.inputStream
-                this@Exchange.inputStream = inputStream
-                try {
-                    inputStream.use { it.copyTo(bos) }
-                } finally {
-                    this@Exchange.inputStream = null
+                if (conn.responseCode != 206) {
+                    throw IOException("Content changed while resuming download, response code ${conn.responseCode}")
                 }
+                conn.consumeBody { growingFile.append(it) }
+                isExchangeComplete = true
             } finally {
-                try {
-                    conn?.disconnect()
-                } catch (e: Exception) {
-                    severe(e) { "Error when closing connection" }
-                }
+                conn?.release(isExchangeComplete)
             }
         }
-        if (bos.size() < contentLength) {
-            throw IOException("Couldn't get full content even after ${attemptCount} attempts." +
-                    " Expected $contentLength bytes, got ${bytes.size}."
-            )
-        }
-        val completeBytes = bos.toByteArray()
-        return decode(completeBytes).also {
-            updateCache(context.cacheFile(url), lastModifiedForCache, completeBytes)
+    }
+
+    // Passes the response body to the read function, letting the request get cancelled meanwhile
+    private fun <R> HttpURLConnection.consumeBody(read: (ReadableByteChannel) -> R): R {
+        val inputStream = inputStream
+        this@Exchange.inputStream = inputStream
+        try {
+            return inputStream.use { read(Channels.newChannel(it)) }
+        } finally {
+            this@Exchange.inputStream = null
         }
     }
 
-    private fun loadCachedResult(): Pair<Long, T>? = runOrNull {
-        val (lastModifiedStr, imgBytes) = context.cachedDataIn(url).use { Pair(it.readUTF(), it.readBytes()) }
-        val mmss = if (lastModifiedStr == NO_CACHE_LAST_MODIFIED) 0L else parseLastModified_mmss(lastModifiedStr)
-        Pair(mmss, imgBytes.parseOrInvalidateImage())
+    private fun loadCachedResult(): Fetched<T>? = runOrNull {
+        val key = cacheKey(url)
+        val knownEntry = HttpCacheIndex[key]?.takeIf { knownVersion != NO_VERSION && it.version == knownVersion }
+        if (knownEntry != null) {
+            // The caller already has it, so don't load it
+            info { "Cached response is the version the caller has: $url" }
+            HttpCacheIndex.recordAccess(key)
+            return@runOrNull Fetched(knownEntry.lastModified_mmss, knownVersion, null)
+        }
+        val (entry, image) = loadCached()
+        Fetched(entry.lastModified_mmss, entry.version, image)
     }
 
-    private fun loadCachedImage(): T? = runOrNull {
-        context.cachedDataIn(url).use { it.readUTF(); it.readBytes() }
-    }?.parseOrInvalidateImage()
+    private fun loadCachedImage(): T? = runOrNull { loadCached().second }
+
+    // Returns Pair(indexEntry, image)
+    private fun loadCached(): Pair<HttpCacheIndex.Entry, T> {
+        val cacheFile = context.cacheFile(url)
+        val decodeCached = decodeCached
+        try {
+            // The cache file holds just the body, the index holds its headers
+            val entry = HttpCacheIndex[cacheFile.name] ?: throw FileNotFoundException("No cache entry for $url")
+            if (decodeCached == null) {
+                val imgBytes = cacheFile.readBytes()
+                HttpCacheIndex.recordAccess(cacheFile.name)
+                return Pair(entry, parseOrInvalidateImage { decode(imgBytes) })
+            }
+            val body = cacheFile.mapCachedBody()
+            HttpCacheIndex.recordAccess(cacheFile.name)
+            return Pair(entry, parseOrInvalidateImage { decodeCached(cacheFile, body) })
+        } catch (e: FileNotFoundException) {
+            // The system may clear the cache directory behind our back
+            HttpCacheIndex.remove(cacheFile.name)
+            throw e
+        }
+    }
 
-    private fun ByteArray.parseOrInvalidateImage(): T {
+    private fun parseOrInvalidateImage(parse: () -> T): T {
         try {
-            return decode(this)
+            return parse()
         } catch (e: ImageDecodeException) {
             severe(CC_PRIVATE) { "Image parsing error" }
             context.invalidateCache(url)
@@ -313,68 +615,310 @@ class Exchange<out T>(
         }
     }
 
-    private fun loadCachedLastModified(url: String) = runOrNull {
-        context.cachedDataIn(url).use { it.readUTF() }
-    }?.takeIf { it != NO_CACHE_LAST_MODIFIED }
-
     private fun HttpURLConnection.logErrorResponse() {
-        val responseBody = runOrNull { '\n' + String(inputStream.use { it.readBytes() }, UTF_8) } ?: ""
+        val responseBody = runOrNull { '\n' + String(errorStream.use { it.readBytes() }, UTF_8) } ?: ""
         severe(CC_PRIVATE) { "Failed to retrieve $url: $responseCode$responseBody" }
     }
 
+    private val HttpCacheIndex.Entry.lastModified_mmss: Long get() =
+        if (lastModified == NO_CACHE_EPOCH) 0L else parseLastModified_mmss(formatLastModified(lastModified))
+
     private fun parseLastModified_mmss(lastModifiedStr: String): Long {
         val groups = lastModifiedRegex.matchEntire(lastModifiedStr)?.groupValues
                 ?: throw NumberFormatException("Failed to parse Last-Modified header: '$lastModifiedStr'")
         return 60L * parseInt(groups[1]) + parseInt(groups[2])
     }
+}
+
+/**
+ * What it takes to resume an interrupted download with a range request.
+ */
+private class ResumeInfo(val lastModifiedStr: String, val etag: String?, val contentLength: Int) {
+    // The If-Range validator. A weak ETag doesn't qualify.
+    val validator: String? = etag?.takeUnless { it.startsWith("W/") }
+        ?: lastModifiedStr.takeIf { it != DEFAULT_LAST_MODIFIED_STR }
+}
+
+// A download that broke off and is kept in the URL's .partial file
+private class PartialDownload(val resumeInfo: ResumeInfo, val receivedBytes: Long)
+
+private val claimedPartialFiles = HashSet<File>()
+
+private fun claimPartialFile(cacheFile: File) = synchronized(claimedPartialFiles) { claimedPartialFiles.add(cacheFile) }
 
-    private fun String.parseLastModified() = try {
-        ZonedDateTime.parse(this, lastModifiedDateFormat).toInstant().toEpochMilli()
-    } catch (_: DateTimeParseException) {
-        defaultLastModified
+private fun unclaimPartialFile(cacheFile: File) {
+    synchronized(claimedPartialFiles) { claimedPartialFiles.remove(cacheFile) }
+}
+
+private val File.partialFile get() = File(path + PARTIAL_SUFFIX)
+
+private val File.partialMetaFile get() = File(path + PARTIAL_META_SUFFIX)
+
+/**
+ * Loads the partial download left behind by an earlier request, possibly made
+ * by an earlier process. Discards it if it can't be resumed.
+ */
+private fun loadPartialDownload(cacheFile: File): PartialDownload? {
+    val partialFile = cacheFile.partialFile
+    val partial = if (!partialFile.exists()) null else runOrNull {
+        cacheFile.partialMetaFile.dataIn().use { metaIn ->
+            if (metaIn.readInt() != PARTIAL_META_VERSION) {
+                return@use null
+            }
+            val resumeInfo = ResumeInfo(metaIn.readUTF(), metaIn.readUTF().takeIf { it.isNotEmpty() }, metaIn.readInt())
+            val recordedBytes = metaIn.readLong()
+            val availableBytes = partialFile.length()
+            val receivedBytes = if (recordedBytes == UNKNOWN_RECEIVED_BYTES) availableBytes
+                                else recordedBytes.coerceAtMost(availableBytes)
+            PartialDownload(resumeInfo, receivedBytes)
+        }
+    }?.takeIf { it.resumeInfo.validator != null && it.receivedBytes in 1 until it.resumeInfo.contentLength }
+    if (partial == null) {
+        discardPartialDownload(cacheFile)
     }
+    return partial
+}
 
-    private fun updateCache(cacheFile: File, lastModifiedStr: String, responseBody: ByteArray) {
-        val growingFile = File(cacheFile.path + ".growing")
-        synchronized(CACHE_LOCK) {
-            try {
-                if (lastModifiedStr != NO_CACHE_LAST_MODIFIED) {
-                    val cachedLastModified = runOrNull { cacheFile.dataIn().use { it.readUTF() }.parseLastModified() }
-                    val fetchedLastModified = lastModifiedStr.parseLastModified()
-                    cachedLastModified?.takeIf { it >= fetchedLastModified }?.also {
-                        return
+private fun discardPartialDownload(cacheFile: File) {
+    cacheFile.partialFile.delete()
+    cacheFile.partialMetaFile.delete()
+}
+
+/**
+ * A new version of a cache file, which receives the response body while it's
+ * arriving. Replaces the cache file on [commit], otherwise [close] deletes it.
+ * If another cache file already has the same content, the cache file becomes
+ * a hard link to it instead.
+ *
+ * A resumable download goes into the URL's .partial file, and the caller must
+ * own it (see [claimPartialFile]). If it breaks off, [keepAsPartial] leaves the
+ * received part there for a later request to resume. Other downloads each get
+ * their own growing file, so concurrent downloads of the same URL don't interfere.
+ */
+private class GrowingCacheFile(
+    private val cacheFile: File,
+    private val lastModifiedStr: String,
+    private val etag: String?,
+    private val cacheControl: String,
+    private val publicationPeriodMillis: Long,
+    private val isPartialFile: Boolean,
+    // The download to resume, already in the .partial file
+    resumed: PartialDownload? = null
+) : Closeable {
+    private val file = if (isPartialFile) cacheFile.partialFile
+                       else File("${cacheFile.path}.${growingFileCounter.incrementAndGet()}$GROWING_SUFFIX")
+
+    init {
+        // Replacing the file rather than truncating it leaves intact the mapping
+        // of an earlier download, which a GifSequence may still be reading
+        if (resumed == null) {
+            file.delete()
+            if (isPartialFile) {
+                cacheFile.partialMetaFile.delete()
+            }
+        }
+    }
+
+    private val raf = RandomAccessFile(file, "rw")
+    private var mappedBody: ByteBuffer? = null
+    // How much of an unmapped body has arrived. The file may be longer, see keepAsPartial().
+    private var appendedBytes = resumed?.receivedBytes ?: 0L
+    private var bodyHash: String? = null
+    private var isKept = false
+
+    val bodySize: Long get() = mappedBody?.position()?.toLong() ?: appendedBytes
+
+    // The version of the complete body, see versionOf()
+    val version: Long get() = versionOf(bodyHash())
+
+    // Returns a buffer mapped onto the body, to be filled with exactly contentLength
+    // bytes. Its position is past the part of the body that's already there.
+    fun mapBody(contentLength: Int): ByteBuffer {
+        val receivedBytes = bodySize
+        raf.setLength(contentLength.toLong())
+        return raf.channel.map(READ_WRITE, 0, contentLength.toLong()).also {
+            it.position(receivedBytes.toInt())
+            mappedBody = it
+        }
+    }
+
+    // Appends everything the input delivers, passing it through a fixed-size buffer
+    fun append(input: ReadableByteChannel) {
+        val channel = raf.channel
+        channel.position(appendedBytes)
+        val buffer = ByteBuffer.allocate(TRANSFER_BUFFER_SIZE)
+        while (input.read(buffer) >= 0) {
+            buffer.flip()
+            while (buffer.hasRemaining()) {
+                appendedBytes += channel.write(buffer)
+            }
+            buffer.clear()
+        }
+    }
+
+    fun readBody(): ByteArray {
+        val body = ByteArray(bodySize.toInt())
+        raf.seek(0)
+        raf.readFully(body)
+        return body
+    }
+
+    // Call it only once the complete body is there
+    private fun bodyHash(): String =
+        bodyHash ?: contentHash(raf.channel.map(READ_ONLY, 0, bodySize)).also { bodyHash = it }
+
+    /**
+     * Records how to resume the download, so it can be resumed even if the
+     * process dies while the body is arriving. The length of the file tells
+     * how much has arrived, so this doesn't work with a mapped body, which
+     * is full-size from the start, nor with a file that a mapped body left
+     * at full size.
+     */
+    fun startResumable(resumeInfo: ResumeInfo) {
+        if (isPartialFile && mappedBody == null && raf.length() == appendedBytes) {
+            writePartialMeta(resumeInfo, UNKNOWN_RECEIVED_BYTES)
+        }
+    }
+
+    // Leaves the part of the body received so far for a later request to resume.
+    // The file keeps its length: a GifSequence may still be reading its mapping,
+    // and truncating a mapped file crashes the reader with SIGBUS. The meta file
+    // records how much of it is the received part.
+    fun keepAsPartial(resumeInfo: ResumeInfo) {
+        if (!isPartialFile) {
+            return
+        }
+        try {
+            val receivedBytes = bodySize
+            writePartialMeta(resumeInfo, receivedBytes)
+            isKept = true
+            info(CC_PRIVATE) { "Keeping $receivedBytes of ${resumeInfo.contentLength} bytes to resume later: $file" }
+        } catch (e: IOException) {
+            severe(CC_PRIVATE, e) { "Failed to keep the partial download $file" }
+        }
+    }
+
+    private fun writePartialMeta(resumeInfo: ResumeInfo, receivedBytes: Long) {
+        cacheFile.partialMetaFile.dataOut().use { metaOut ->
+            metaOut.writeInt(PARTIAL_META_VERSION)
+            metaOut.writeUTF(resumeInfo.lastModifiedStr)
+            metaOut.writeUTF(resumeInfo.etag ?: "")
+            metaOut.writeInt(resumeInfo.contentLength)
+            metaOut.writeLong(receivedBytes)
+        }
+    }
+
+    /**
+     * Replaces the cache file with this one, unless the cache already holds a
+     * response at least as new. Returns whether it replaced it. Only the
+     * commits that share a [cacheFileLock] wait for each other.
+     *
+     * If the cache file already has the same content, it stays in place and
+     * only its index entry gets the new headers.
+     */
+    fun commit(): Boolean {
+        var evicted = emptyList<String>()
+        var link: File? = null
+        try {
+            val hash = bodyHash()
+            link = linkToSameContent(hash)
+            synchronized(cacheFileLock(cacheFile.name)) {
+                val fetchedLastModified =
+                    if (lastModifiedStr == NO_CACHE_LAST_MODIFIED) NO_CACHE_EPOCH else lastModifiedStr.parseLastModified()
+                if (fetchedLastModified != NO_CACHE_EPOCH) {
+                    val cachedLastModified = cachedLastModified(cacheFile)
+                    if (cachedLastModified != null && cachedLastModified >= fetchedLastModified) {
+                        return false
+                    }
+                }
+                raf.close()
+                if (HttpCacheIndex[cacheFile.name]?.contentHash != hash || !cacheFile.exists()) {
+                    cacheFile.gifIndexFile.delete()
+                    val replacement = link ?: file
+                    if (!replacement.renameTo(cacheFile)) {
+                        throw IOException("Failed to rename $replacement to ${cacheFile.name}")
                     }
+                    isKept = replacement == file
+                }
+                if (isPartialFile) {
+                    cacheFile.partialMetaFile.delete()
                 }
-                growingFile.dataOut().use { it.writeUTF(lastModifiedStr); it.write(responseBody) }
-                growingFile.renameTo(cacheFile).takeIf { !it }?.also {
-                    throw IOException("Failed to rename $growingFile to ${cacheFile.name}")
+                evicted = HttpCacheIndex.put(
+                    cacheFile.name, fetchedLastModified, etag, hash, cacheFile.length(), cacheControl,
+                    publicationPeriodMillis)
+            }
+            return true
+        } catch (e: IOException) {
+            severe(CC_PRIVATE, e) { "Failed to write cached image to $file" }
+            return false
+        } finally {
+            link?.delete()
+            HttpCacheIndex.deleteEvicted(evicted)
+        }
+    }
+
+    // Creates a hard link to another cache file with the same content, if there is one.
+    // Holding that file's lock ensures it still has the content when it gets linked.
+    private fun linkToSameContent(hash: String): File? {
+        val otherKey = HttpCacheIndex.keyWithContent(hash, cacheFile.name) ?: return null
+        val link = File("${cacheFile.path}.${growingFileCounter.incrementAndGet()}$GROWING_SUFFIX")
+        return try {
+            synchronized(cacheFileLock(otherKey)) {
+                if (HttpCacheIndex[otherKey]?.contentHash != hash) {
+                    return null
                 }
-            } catch (e: IOException) {
-                severe(CC_PRIVATE, e) { "Failed to write cached image to $growingFile" }
+                Files.createLink(link.toPath(), File(cacheFile.parentFile, otherKey).toPath())
+            }
+            info(CC_PRIVATE) { "Same content as $otherKey, linking to it: ${cacheFile.name}" }
+            link
+        } catch (e: Exception) {
+            // E.g., the file system doesn't support hard links. The cache file gets a copy of its own.
+            warn(CC_PRIVATE) { "Failed to link ${cacheFile.name} to $otherKey: $e" }
+            link.delete()
+            null
+        }
+    }
+
+    override fun close() {
+        raf.close()
+        if (!isKept) {
+            file.delete()
+            if (isPartialFile) {
+                cacheFile.partialMetaFile.delete()
             }
         }
     }
 }
 
-private fun Context.cachedDataIn(url: String) = cacheFile(url).dataIn()
+// Cache files only get replaced, never overwritten, so the mapping stays valid
+private fun File.mapCachedBody(): ByteBuffer = RandomAccessFile(this, "r").use { file ->
+    file.channel.map(READ_ONLY, 0, file.length())
+}
+
+private val File.gifIndexFile get() = File(path + GIF_INDEX_SUFFIX)
 
 fun Context.invalidateCache(url: String) {
-    synchronized(CACHE_LOCK) {
+    val cacheFile = cacheFile(url)
+    synchronized(cacheFileLock(cacheFile.name)) {
         warn(CC_PRIVATE) { "Invalidating cache for $url" }
-        val cacheFile = cacheFile(url)
+        HttpCacheIndex.remove(cacheFile.name)
+        cacheFile.gifIndexFile.delete()
+        // Without its index entry, the file won't get used even if it stays
         if (!cacheFile.delete() && cacheFile.exists()) {
             severe(CC_PRIVATE) { "Failed to delete the cached file for $url" }
-            // At least write a stale last-modified date to prevent retry loops
-            cacheFile.dataOut().use { cachedOut ->
-                cachedOut.writeUTF(DEFAULT_LAST_MODIFIED_STR)
-            }
         }
     }
 }
 
+// The name of the URL's cache file, which is also its key in HttpCacheIndex
+private fun cacheKey(url: String) = filenameCharsToAvoidRegex.replace(url, FILENAME_SUBSTITUTE_CHAR)
+
+// Epoch Last-Modified of the cached response, null if none or no-cache
+private fun cachedLastModified(cacheFile: File): Long? =
+    HttpCacheIndex[cacheFile.name]?.lastModified?.takeIf { it != NO_CACHE_EPOCH }
+
 private fun Context.cacheFile(url: String): File {
-    val fname = filenameCharsToAvoidRegex.replace(url, FILENAME_SUBSTITUTE_CHAR)
-    val file = fileInCache("$HTTP_CACHE_DIR/$fname")
+    val file = fileInCache("$HTTP_CACHE_DIR/${cacheKey(url)}")
     if (file.isDirectory) {
         file.delete()
     }
@@ -383,6 +927,6 @@ private fun Context.cacheFile(url: String): File {
 }
 
 fun Context.cacheDirFilesStartingWith(url: String): Sequence<File> {
-    val fname = filenameCharsToAvoidRegex.replace(url, FILENAME_SUBSTITUTE_CHAR)
+    val fname = cacheKey(url)
     return fileInCache(HTTP_CACHE_DIR).walkTopDown().filter { it.isFile && it.name.startsWith(fname) }
 }
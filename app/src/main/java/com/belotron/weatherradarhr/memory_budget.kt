@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2018-2023 Marko Topolnik
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.belotron.weatherradarhr
+
+import android.app.ActivityManager
+import android.content.Context
+import android.os.SystemClock
+import java.util.concurrent.atomic.AtomicLong
+
+// The animations may take up this fraction of the app's heap
+private const val HEAP_SHARE_DIVISOR = 3
+
+// A consumer viewed this recently is still on screen and doesn't get demoted
+private const val VIEWED_RECENTLY_MILLIS = 3_000L
+
+/**
+ * Keeps the memory held by the animations within a budget derived from the
+ * heap size of the device. Counts the frames held by each [Consumer] and the
+ * bitmaps and arrays allocated by each
+ * [BitmapFreelists][com.belotron.weatherradarhr.gifdecode.BitmapFreelists],
+ * along with the canvases the [AnimatedGifLoader]s keep. The frames the
+ * loaders keep are the ones their animators play, and get released along
+ * with the animators.
+ * When over budget, demotes the consumers that weren't viewed for the longest
+ * time.
+ */
+object FrameMemoryBudget {
+
+    interface Consumer {
+        /** Bytes held by the frames, not counting what the allocator reports. */
+        val heldBytes: Long
+
+        /** [SystemClock.uptimeMillis] of the last time the consumer showed a frame on screen. */
+        val lastViewedAt: Long
+
+        /**
+         * Releases everything that can be recreated and moves the frames into
+         * a compact representation. The consumer restores itself when it's
+         * next viewed.
+         */
+        fun demote()
+    }
+
+    private var budgetBytes = Long.MAX_VALUE
+    private val allocatedBytes = AtomicLong()
+    private val consumers = mutableSetOf<Consumer>()
+
+    fun init(context: Context) {
+        val memoryClass = (context.getSystemService(Context.ACTIVITY_SERVICE) as ActivityManager).memoryClass
+        budgetBytes = memoryClass * 1024L * 1024 / HEAP_SHARE_DIVISOR
+        info { "Frame memory budget: ${budgetBytes / 1024} kB" }
+    }
+
+    fun allocated(bytes: Long) {
+        allocatedBytes.addAndGet(bytes)
+    }
+
+    @Synchronized
+    fun register(consumer: Consumer) {
+        consumers.add(consumer)
+    }
+
+    @Synchronized
+    fun unregister(consumer: Consumer) {
+        consumers.remove(consumer)
+    }
+
+    /**
+     * Demotes the least recently viewed consumers until the memory use is
+     * within budget. Leaves alone the consumers that are on screen.
+     */
+    @Synchronized
+    fun enforce() {
+        var usedBytes = allocatedBytes.get() + consumers.sumOf { it.heldBytes }
+        if (usedBytes <= budgetBytes) {
+            return
+        }
+        val now = SystemClock.uptimeMillis()
+        val candidates = consumers
+            .filter { now - it.lastViewedAt > VIEWED_RECENTLY_MILLIS }
+            .sortedBy { it.lastViewedAt }
+        for (consumer in candidates) {
+            info { "Frame memory ${usedBytes / 1024} kB over budget ${budgetBytes / 1024} kB, demoting $consumer" }
+            consumer.demote()
+            usedBytes = allocatedBytes.get() + consumers.sumOf { it.heldBytes }
+            if (usedBytes <= budgetBytes) {
+                return
+            }
+        }
+        warn { "Frame memory ${usedBytes / 1024} kB still over budget ${budgetBytes / 1024} kB" }
+    }
+}
@@ -18,80 +18,150 @@ package com.belotron.weatherradarhr
 
 import android.content.Context
 import com.belotron.weatherradarhr.gifdecode.BitmapPixels
+import com.belotron.weatherradarhr.gifdecode.IntArrayPixels
 import com.belotron.weatherradarhr.gifdecode.Pixels
 import com.belotron.weatherradarhr.gifdecode.decodeArgbToGray
+import kotlinx.coroutines.Dispatchers.IO
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
 import java.util.*
 import java.util.Calendar.*
 import java.util.TimeZone.getTimeZone
 import kotlin.math.abs
+import kotlin.math.min
 
 object SloOcr {
+    private const val TIMESTAMP_Y = 28
+    private const val DIGIT_HEIGHT = 9
+    private const val FIRST_CHAR_X = 9
+    private const val CHAR_ADVANCE = 7
+    // yyyy-MM-dd HH:mm
+    private const val CHAR_COUNT = 16
 
+    // Number of top image rows that hold the timestamp
+    const val TIMESTAMP_ROWS = TIMESTAMP_Y + DIGIT_HEIGHT
+
+    // The leftmost column of each digit, which tells them apart
     @Volatile
-    private var digitTemplates: List<Pixels> = emptyList()
+    private var digitColumns: List<IntArray> = emptyList()
 
     fun ocrSloTimestamp(pixels: Pixels): Long {
         initDigitPixelses()
-        ocrDateTime(pixels).also {
-            debug { "ARSO OCRed date/time: $it" }
-            return it.toTimestamp
+        val stride = pixels.width
+        return pixels.withArgbRows(TIMESTAMP_Y, DIGIT_HEIGHT) { argb, offset ->
+            val stripHash = stripHash("arso", TIMESTAMP_Y, argb, offset, stride,
+                FIRST_CHAR_X, FIRST_CHAR_X + CHAR_ADVANCE * CHAR_COUNT, DIGIT_HEIGHT)
+            OcrMemo.getOrPut(stripHash) {
+                ocrDateTime(argb, offset, stride).also {
+                    debug { "ARSO OCRed date/time: $it" }
+                }.toTimestamp
+            }
         }
     }
 
     private fun initDigitPixelses() = synchronized(this) {
-        if (digitTemplates.isEmpty()) {
-            digitTemplates = appContext.loadDigits("arso", "gif")
+        if (digitColumns.isEmpty()) {
+            digitColumns = appContext.loadDigits("arso", "gif").map { digit -> IntArray(digit.height) { digit[0, it] } }
         }
     }
 
-    private fun ocrDateTime(pixels: Pixels) = DateTime(
-            year = readNumber(pixels, 0, 1, 2, 3),
-            month = readNumber(pixels, 5, 6),
-            day = readNumber(pixels, 8, 9),
-            hour = readNumber(pixels, 11, 12),
-            minute = readNumber(pixels, 14, 15),
+    private fun ocrDateTime(argb: IntArray, offset: Int, stride: Int) = DateTime(
+            year = readNumber(argb, offset, stride, 0, 4),
+            month = readNumber(argb, offset, stride, 5, 2),
+            day = readNumber(argb, offset, stride, 8, 2),
+            hour = readNumber(argb, offset, stride, 11, 2),
+            minute = readNumber(argb, offset, stride, 14, 2),
             tz = getTimeZone("UTC"))
 
-    private fun readNumber(pixels: Pixels, vararg indices: Int): Int =
-            indices.fold(0) { acc, ind -> 10 * acc + readDigit(pixels, ind) }
+    private fun readNumber(argb: IntArray, offset: Int, stride: Int, firstPos: Int, digitCount: Int): Int {
+        var number = 0
+        for (pos in firstPos until firstPos + digitCount) {
+            number = 10 * number + readDigit(argb, offset, stride, pos)
+        }
+        return number
+    }
 
-    private fun readDigit(pixels: Pixels, pos: Int) =
-            (0..9).find { stripeEqual(pixels, 7 * pos + 9, 28, digitTemplates[it], 0) } ?: ocrFailed()
+    private fun readDigit(argb: IntArray, offset: Int, stride: Int, pos: Int): Int {
+        val columnStart = offset + CHAR_ADVANCE * pos + FIRST_CHAR_X
+        for (digit in 0..9) {
+            if (columnEqual(argb, columnStart, stride, digitColumns[digit])) {
+                return digit
+            }
+        }
+        return ocrFailed()
+    }
+
+    // Whether the image column that starts at the given index equals the digit's column
+    private fun columnEqual(argb: IntArray, columnStart: Int, stride: Int, column: IntArray): Boolean {
+        var i = columnStart
+        for (y in column.indices) {
+            if (argb[i] != column[y]) {
+                return false
+            }
+            i += stride
+        }
+        return true
+    }
 }
 
 object HrOcr {
+    private const val KOMPOZIT_TIMESTAMP_Y = 6
+    private const val SINGLE_TIMESTAMP_Y = 66
+    private const val DIGIT_HEIGHT = 11
+    private const val DIGIT_COUNT = 12
+    private const val SCAN_LEFT = 80
+    private const val SCAN_RIGHT = 260
+    private const val DIGIT_ADVANCE = 6
+
+    // Number of top image rows that hold the timestamp
+    const val KOMPOZIT_TIMESTAMP_ROWS = KOMPOZIT_TIMESTAMP_Y + DIGIT_HEIGHT
+    const val SINGLE_TIMESTAMP_ROWS = SINGLE_TIMESTAMP_Y + DIGIT_HEIGHT
+
     @Volatile
-    private var digitTemplates: List<Pixels> = emptyList()
+    private var digitReader: DigitReader? = null
 
-    fun ocrTimestampKompozit(pixels: Pixels) = ocrHrTimestamp(pixels, 6)
+    fun ocrTimestampKompozit(pixels: Pixels) = ocrHrTimestamp(pixels, KOMPOZIT_TIMESTAMP_Y)
 
-    fun ocrTimestampSingle(pixels: Pixels) = ocrHrTimestamp(pixels, 66)
+    fun ocrTimestampSingle(pixels: Pixels) = ocrHrTimestamp(pixels, SINGLE_TIMESTAMP_Y)
 
     private fun ocrHrTimestamp(pixels: Pixels, imgY: Int): Long {
-        initDigitPixelses()
-        val dateTime = ocrDateTime(pixels, imgY)
-        debug { "DHMZ OCRed date/time: $dateTime" }
-        return dateTime.toTimestamp
+        val reader = initDigitReader()
+        val stride = pixels.width
+        return pixels.withArgbRows(imgY, DIGIT_HEIGHT) { argb, offset ->
+            val stripHash = stripHash("dhmz", imgY, argb, offset, stride, SCAN_LEFT, reader.scanEnd(stride), DIGIT_HEIGHT)
+            OcrMemo.getOrPut(stripHash) {
+                val dateTime = ocrDateTime(reader, argb, offset, stride)
+                debug { "DHMZ OCRed date/time: $dateTime" }
+                dateTime.toTimestamp
+            }
+        }
     }
 
-    private fun initDigitPixelses() = synchronized(this) {
-        if (digitTemplates.isEmpty()) {
-            digitTemplates = appContext.loadDigits("dhmz", "png")
-        }
+    private fun initDigitReader() = synchronized(this) {
+        digitReader ?: DigitReader(
+            appContext.loadDigits("dhmz", "png").map { it.toGrayTemplate() },
+            DIGIT_HEIGHT, SCAN_LEFT, SCAN_RIGHT, DIGIT_ADVANCE
+        ).also { digitReader = it }
     }
 
-    private fun ocrDateTime(img: Pixels, y: Int): DateTime {
-        var x = 80
-        val digits = IntArray(12) { 0 }
-        var digitIndex = 0
-        while (x < 260 && digitIndex < 12) {
-            val digit = (0..9).find { isMatch(img, x, y, digitTemplates[it]) }
-            if (digit != null) {
-                digits[digitIndex++] = digit
-                x += 6
-            } else {
-                x++
-            }
+    private fun ocrDateTime(reader: DigitReader, argb: IntArray, offset: Int, stride: Int): DateTime {
+        // Convert the rows that hold the timestamp to gray just once
+        val gray = grayScratch.obtain(stride * DIGIT_HEIGHT)
+        for (i in 0 until stride * DIGIT_HEIGHT) {
+            gray[i] = decodeArgbToGray(argb[offset + i])
+        }
+        val digits = IntArray(DIGIT_COUNT) { 0 }
+        if (!reader.readDigits(gray, stride, digits)) {
+            // Don't let missing digits, left at zero, into the memo as a wrong timestamp
+            ocrFailed()
         }
         return digits.run {
             DateTime(
@@ -105,21 +175,143 @@ object HrOcr {
         }
     }
 
-    private fun isMatch(img: Pixels, imgX: Int, imgY: Int, template: Pixels): Boolean {
-        var totalDiff = 0
-//        info { "art\n" + asciiArt(img, imgX, imgY, template) }
-        (0 until template.height).forEach { y ->
-            (0 until template.width).forEach { x ->
-                totalDiff += abs(decodeArgbToGray(img[imgX + x, imgY + y]) - decodeArgbToGray(template[x, y]))
-                if (totalDiff > 2500) {
-                    return false
+    private fun IntArray.digitsToInt(range: IntRange) = range.fold(0) { acc, i -> 10 * acc + this[i] }
+}
+
+/**
+ * Reads the digits of a timestamp from its rows converted to gray, [height]
+ * rows with any row stride. The leftmost column of each digit lies in
+ * [scanLeft, scanRight). The [templates] are those of the digits 0 to 9.
+ */
+internal class DigitReader(
+    private val templates: List<GrayTemplate>,
+    private val height: Int,
+    private val scanLeft: Int,
+    private val scanRight: Int,
+    // How far the sliding scan skips past a digit it found
+    private val digitAdvance: Int
+) {
+    // Each digit's signature, taken over this many columns from its leftmost ink, see signature()
+    private val signatureColumns = templates.minOf { it.width - it.inkLeft }
+    private val signatures = LongArray(templates.size) {
+        templates[it].run { signature(inkMasks, inkLeft, signatureColumns) }
+    }
+    private val maxTemplateWidth = templates.maxOf { it.width }
+
+    // The end of the columns a digit can reach into
+    fun scanEnd(stride: Int) = min(stride, scanRight + maxTemplateWidth)
+
+    // Returns false if it didn't find all the digits
+    fun readDigits(gray: IntArray, stride: Int, digits: IntArray): Boolean {
+        if (readDigitsBySegments(gray, stride, digits)) {
+            return true
+        }
+        debug { "DHMZ timestamp didn't split into digits, sliding the templates over it" }
+        digits.fill(0)
+        return readDigitsBySliding(gray, stride, digits) == digits.size
+    }
+
+    /**
+     * Finds the digits through the ink in each column of the timestamp rows.
+     * A digit starts at the first column with ink. Its signature tells which
+     * digit it probably is, and one template comparison confirms it. If that
+     * fails, it gets compared with all the templates, and if none matches,
+     * it isn't a digit. Returns false if it didn't find all the digits.
+     */
+    fun readDigitsBySegments(gray: IntArray, stride: Int, digits: IntArray): Boolean {
+        val scanEnd = scanEnd(stride)
+        val masks = inkMaskScratch.obtain(stride)
+        computeInkMasks(gray, stride, height, scanLeft, scanEnd, masks)
+        var x = scanLeft
+        var digitIndex = 0
+        while (digitIndex < digits.size) {
+            while (x < scanRight && masks[x] == 0) {
+                x++
+            }
+            if (x >= scanRight) {
+                return false
+            }
+            val digit = classifyAt(gray, stride, masks, x, scanEnd)
+            if (digit >= 0) {
+                digits[digitIndex++] = digit
+                // The next digit may touch this one
+                x += templates[digit].inkRight - templates[digit].inkLeft + 1
+            } else {
+                // Not a digit, skip its ink
+                while (x < scanEnd && masks[x] != 0) {
+                    x++
                 }
             }
         }
         return true
     }
 
-    private fun IntArray.digitsToInt(range: IntRange) = range.fold(0) { acc, i -> 10 * acc + this[i] }
+    // Classifies the glyph whose leftmost ink is at inkX. Returns -1 if it isn't a digit.
+    private fun classifyAt(gray: IntArray, stride: Int, masks: IntArray, inkX: Int, scanEnd: Int): Int {
+        val hasSignature = inkX + signatureColumns <= scanEnd
+        val glyphSignature = if (hasSignature) signature(masks, inkX, signatureColumns) else 0L
+        for (digit in signatures.indices) {
+            if (hasSignature && signatures[digit] == glyphSignature
+                    && isMatchAt(gray, stride, inkX - templates[digit].inkLeft, digit)) {
+                return digit
+            }
+        }
+        for (digit in templates.indices) {
+            val isChecked = hasSignature && signatures[digit] == glyphSignature
+            if (!isChecked && isMatchAt(gray, stride, inkX - templates[digit].inkLeft, digit)) {
+                return digit
+            }
+        }
+        return -1
+    }
+
+    private fun isMatchAt(gray: IntArray, stride: Int, imgX: Int, digit: Int): Boolean {
+        val template = templates[digit]
+        return imgX >= 0 && imgX + template.width <= stride && isMatch(gray, stride, imgX, template)
+    }
+
+    // Returns the number of digits found
+    fun readDigitsBySliding(gray: IntArray, stride: Int, digits: IntArray): Int {
+        var x = scanLeft
+        var digitIndex = 0
+        while (x < scanRight && digitIndex < digits.size) {
+            val digit = matchingDigit(gray, stride, x)
+            if (digit >= 0) {
+                digits[digitIndex++] = digit
+                x += digitAdvance
+            } else {
+                x++
+            }
+        }
+        return digitIndex
+    }
+
+    // Returns -1 if no digit matches
+    private fun matchingDigit(gray: IntArray, stride: Int, x: Int): Int {
+        for (digit in templates.indices) {
+            if (x + templates[digit].width <= stride && isMatch(gray, stride, x, templates[digit])) {
+                return digit
+            }
+        }
+        return -1
+    }
+
+    // The sum of absolute differences, which only grows, gets checked after each row
+    private fun isMatch(gray: IntArray, stride: Int, imgX: Int, template: GrayTemplate): Boolean {
+        val templateGray = template.gray
+        var totalDiff = 0
+        var t = 0
+        for (y in 0 until template.height) {
+            var i = y * stride + imgX
+            for (x in 0 until template.width) {
+                totalDiff += abs(gray[i++] - templateGray[t++])
+            }
+            if (totalDiff > MAX_DIGIT_DIFF) {
+                return false
+            }
+        }
+        return true
+    }
 }
 
 private fun asciiArt(img: Pixels, left: Int, top: Int, template: Pixels): String {
@@ -139,12 +331,276 @@ private fun asciiArt(img: Pixels, left: Int, top: Int, template: Pixels): String
     return b.toString()
 }
 
+private const val OCR_MEMO_FILE = "ocr.memo"
+private const val OCR_MEMO_VERSION = 1
+private const val OCR_MEMO_CAPACITY = 1024
+// How long the OCR memo collects new entries before appending them to its file
+private const val OCR_MEMO_FLUSH_DELAY_MILLIS = 2_000L
+private const val FNV_OFFSET_BASIS = -0x340d631b7bdddcdbL // 0xcbf29ce484222325
+private const val FNV_PRIME = 0x100000001b3L
+
 /**
- * Returns true if the vertical stripe of `rect` at `rectX` is equal to
- * the vertical stripe in `img` at `(imgX + rectX, imgY)`
+ * FNV-1a hash of the pixels in the columns [fromX, untilX) of the timestamp
+ * rows, which start at `top` in the image. Along with the source and the
+ * position of the rows, it identifies the timestamp for [OcrMemo].
+ */
+private fun stripHash(
+    source: String, top: Int, argb: IntArray, offset: Int, stride: Int, fromX: Int, untilX: Int, rowCount: Int
+): Long {
+    var hash = FNV_OFFSET_BASIS
+    hash = (hash xor source.hashCode().toLong()) * FNV_PRIME
+    hash = (hash xor top.toLong()) * FNV_PRIME
+    hash = (hash xor stride.toLong()) * FNV_PRIME
+    for (y in 0 until rowCount) {
+        val rowStart = offset + y * stride
+        for (i in rowStart + fromX until rowStart + untilX) {
+            hash = (hash xor argb[i].toLong()) * FNV_PRIME
+        }
+    }
+    return hash
+}
+
+/**
+ * Remembers the timestamps OCRed so far, keyed by [stripHash]. Every refresh
+ * of an animation brings mostly the same frames, and a widget shows the
+ * newest of them, so most OCRs find their result here.
+ *
+ * Keeps the most recently used entries up to a capacity. Persists them in an
+ * append-only file in the cache directory, which gets rewritten when it has
+ * twice as many records as the capacity.
+ *
+ * OCR runs on the main thread for the widgets, so lookups only touch the
+ * entries in memory. The file gets loaded in the background on first use,
+ * and new entries get appended to it in batches.
  */
-private fun stripeEqual(img: Pixels, imgX: Int, imgY: Int, rect: Pixels, rectX: Int) =
-        (0 until rect.height).all { rectY -> img[imgX + rectX, imgY + rectY] == rect[rectX, rectY] }
+private object OcrMemo {
+    // Runs the file I/O one task at a time
+    private val ioDispatcher = IO.limitedParallelism(1)
+    private val timestamps = object : LinkedHashMap<Long, Long>(64, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Long, Long>?) = size > OCR_MEMO_CAPACITY
+    }
+    // The entries put since the last flush(), as pairs of stripHash and timestamp
+    private val unflushed = mutableListOf<Long>()
+    private var isLoadStarted = false
+    private var isFlushScheduled = false
+    // Used only on ioDispatcher
+    private var memoOut: DataOutputStream? = null
+    private var recordCount = 0
+
+    inline fun getOrPut(stripHash: Long, ocr: () -> Long): Long {
+        get(stripHash)?.also { return it }
+        return ocr().also { put(stripHash, it) }
+    }
+
+    // Until the file is loaded, finds only the entries put since
+    @Synchronized
+    fun get(stripHash: Long): Long? {
+        startLoading()
+        return timestamps[stripHash]
+    }
+
+    @Synchronized
+    fun put(stripHash: Long, timestamp: Long) {
+        startLoading()
+        timestamps[stripHash] = timestamp
+        unflushed.add(stripHash)
+        unflushed.add(timestamp)
+        if (!isFlushScheduled) {
+            isFlushScheduled = true
+            appCoroScope.launch(ioDispatcher) {
+                // An animation OCRs its frames in a burst, write them all at once
+                delay(OCR_MEMO_FLUSH_DELAY_MILLIS)
+                flush()
+            }
+        }
+    }
+
+    private fun startLoading() {
+        if (isLoadStarted) {
+            return
+        }
+        isLoadStarted = true
+        appCoroScope.launch(ioDispatcher) { load() }
+    }
+
+    private fun load() {
+        val loaded = LinkedHashMap<Long, Long>()
+        val file = appContext.fileInCache(OCR_MEMO_FILE)
+        if (file.exists()) {
+            try {
+                DataInputStream(BufferedInputStream(FileInputStream(file))).use { input ->
+                    if (input.readInt() == OCR_MEMO_VERSION) {
+                        try {
+                            while (true) {
+                                val stripHash = input.readLong()
+                                loaded[stripHash] = input.readLong()
+                            }
+                        } catch (_: EOFException) {
+                            // A truncated last record is fine
+                        }
+                    }
+                }
+            } catch (e: IOException) {
+                severe(e) { "Failed to load the OCR memo" }
+                loaded.clear()
+            }
+        }
+        synchronized(this) {
+            // The entries put while loading are the most recently used
+            val putMeanwhile = LinkedHashMap(timestamps)
+            timestamps.clear()
+            timestamps.putAll(loaded)
+            timestamps.putAll(putMeanwhile)
+        }
+        rewrite()
+    }
+
+    private fun flush() {
+        val records = synchronized(this) {
+            isFlushScheduled = false
+            unflushed.toLongArray().also { unflushed.clear() }
+        }
+        val out = memoOut ?: return
+        try {
+            records.forEach { out.writeLong(it) }
+            out.flush()
+        } catch (e: IOException) {
+            severe(e) { "Failed to append to the OCR memo" }
+            closeMemoOut()
+            return
+        }
+        recordCount += records.size / 2
+        if (recordCount > 2 * OCR_MEMO_CAPACITY) {
+            rewrite()
+        }
+    }
+
+    private fun rewrite() {
+        closeMemoOut()
+        // The rewritten file holds the unflushed entries as well
+        val records = synchronized(this) {
+            unflushed.clear()
+            timestamps.entries.map { Pair(it.key, it.value) }
+        }
+        val file = appContext.fileInCache(OCR_MEMO_FILE)
+        val tmpFile = appContext.fileInCache("$OCR_MEMO_FILE.tmp")
+        try {
+            DataOutputStream(BufferedOutputStream(FileOutputStream(tmpFile))).use { out ->
+                out.writeInt(OCR_MEMO_VERSION)
+                for ((stripHash, timestamp) in records) {
+                    out.writeLong(stripHash)
+                    out.writeLong(timestamp)
+                }
+            }
+            if (!tmpFile.renameTo(file)) {
+                throw IOException("Failed to rename $tmpFile to $file")
+            }
+            recordCount = records.size
+            memoOut = DataOutputStream(BufferedOutputStream(FileOutputStream(file, true)))
+        } catch (e: IOException) {
+            // Carry on with the memo in memory only
+            severe(e) { "Failed to write the OCR memo" }
+            tmpFile.delete()
+        }
+    }
+
+    private fun closeMemoOut() {
+        val out = memoOut ?: return
+        memoOut = null
+        try {
+            out.close()
+        } catch (e: IOException) {
+            severe(e) { "Failed to close the OCR memo" }
+        }
+    }
+}
+
+// A gray value that differs from the background by more than this is ink
+private const val INK_THRESHOLD = 96
+private const val MAX_GRAY = 3 * 0xff
+// The largest sum of absolute gray differences between a digit and its template
+private const val MAX_DIGIT_DIFF = 2500
+
+// A digit template converted to gray, row after row
+internal class GrayTemplate(val width: Int, val height: Int, val gray: IntArray) {
+    // Per column, a bit for each row whose pixel is ink
+    val inkMasks = IntArray(width).also { computeInkMasks(gray, width, height, 0, width, it) }
+    // The first and last column with ink
+    val inkLeft = inkMasks.indexOfFirst { it != 0 }.coerceAtLeast(0)
+    val inkRight = inkMasks.indexOfLast { it != 0 }.coerceAtLeast(inkLeft)
+}
+
+/**
+ * Fills the masks of the columns in [fromX, untilX) with a bit for each row
+ * whose pixel is ink. The background is the most common gray value there.
+ */
+internal fun computeInkMasks(gray: IntArray, stride: Int, height: Int, fromX: Int, untilX: Int, masks: IntArray) {
+    val histogram = histogramScratch.obtain(MAX_GRAY + 1)
+    histogram.fill(0, 0, MAX_GRAY + 1)
+    for (y in 0 until height) {
+        for (x in fromX until untilX) {
+            histogram[gray[y * stride + x]]++
+        }
+    }
+    var background = 0
+    for (value in 1..MAX_GRAY) {
+        if (histogram[value] > histogram[background]) {
+            background = value
+        }
+    }
+    for (x in fromX until untilX) {
+        var mask = 0
+        for (y in 0 until height) {
+            if (abs(gray[y * stride + x] - background) > INK_THRESHOLD) {
+                mask = mask or (1 shl y)
+            }
+        }
+        masks[x] = mask
+    }
+}
+
+// Tells the shapes of glyphs apart by the ink masks of their columns
+internal fun signature(masks: IntArray, fromX: Int, columnCount: Int): Long {
+    var signature = 0L
+    for (x in fromX until fromX + columnCount) {
+        signature = 31 * signature + masks[x]
+    }
+    return signature
+}
+
+private fun Pixels.toGrayTemplate(): GrayTemplate {
+    val gray = IntArray(width * height).also { getRows(it, 0, 0, height) }
+    gray.indices.forEach { gray[it] = decodeArgbToGray(gray[it]) }
+    return GrayTemplate(width, height, gray)
+}
+
+// A buffer per thread, reused by the OCR of every frame
+private class ScratchBuffer {
+    private val buffer = ThreadLocal<IntArray>()
+
+    fun obtain(size: Int): IntArray =
+        buffer.get()?.takeIf { it.size >= size } ?: IntArray(size).also { buffer.set(it) }
+}
+
+private val argbScratch = ScratchBuffer()
+private val grayScratch = ScratchBuffer()
+private val inkMaskScratch = ScratchBuffer()
+private val histogramScratch = ScratchBuffer()
+
+/**
+ * Passes to the block the ARGB pixels of the image rows starting at `top`,
+ * as an array whose row stride is the image width, and the index of the
+ * first pixel in it. Passes the decoder's array directly, other images get
+ * their rows copied in bulk.
+ */
+private inline fun <R> Pixels.withArgbRows(top: Int, rowCount: Int, block: (argb: IntArray, offset: Int) -> R): R {
+    if (this is IntArrayPixels) {
+        return block(pixels, top * width)
+    }
+    val argb = argbScratch.obtain(width * rowCount)
+    getRows(argb, 0, top, rowCount)
+    return block(argb, 0)
+}
 
 private fun Context.loadDigits(path: String, suffix: String) = (0..9).map { loadDigit(path, suffix, it) }
 
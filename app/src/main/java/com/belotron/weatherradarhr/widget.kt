@@ -408,7 +408,8 @@ private class WidgetContext (
             try {
                 try {
                     val (lastModified_mmss, bitmap) =
-                            fetchBitmap(context, wDesc.url, if (onlyIfNew) ONLY_IF_NEW else UP_TO_DATE)
+                            fetchBitmap(context, wDesc.url, if (onlyIfNew) ONLY_IF_NEW else UP_TO_DATE,
+                                wDesc.updatePeriodMinutes * MINUTE_IN_MILLIS)
                     if (bitmap == null) {
                         // This may happen only with `onlyIfNew == true`
                         return null
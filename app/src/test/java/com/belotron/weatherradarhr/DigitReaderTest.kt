@@ -0,0 +1,121 @@
+package com.belotron.weatherradarhr
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+
+class DigitReaderTest {
+
+    private val templates = font.map { glyph(it) }
+    private val reader = DigitReader(templates, HEIGHT, SCAN_LEFT, SCAN_RIGHT, DIGIT_ADVANCE)
+    private val timestampDigits = intArrayOf(2, 0, 2, 4, 0, 1, 1, 5, 1, 2, 3, 0)
+
+    @Test fun separatedDigits() = assertArrayEquals(timestampDigits, bySegments(strip(TIMESTAMP, gap = 2)))
+
+    @Test fun touchingDigits() = assertArrayEquals(timestampDigits, bySegments(strip(TIMESTAMP, gap = 0)))
+
+    @Test fun everyDigit() = assertArrayEquals(
+        intArrayOf(0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 8, 9), bySegments(strip("0123456789-89", gap = 0)))
+
+    // A line touching the first digit takes it along when segmentation skips the line
+    @Test fun inkTouchingADigit() = assertNull(bySegments(strip("|$TIMESTAMP", gap = 2)))
+
+    @Test fun slidingFindsTheDigitNextToInk() =
+        assertArrayEquals(timestampDigits, readDigits(strip("|$TIMESTAMP", gap = 2)))
+
+    @Test fun missingDigit() = assertNull(readDigits(strip(TIMESTAMP.dropLast(1), gap = 2)))
+
+    @Test fun slidingCountsTheDigitsFound() =
+        assertEquals(11, reader.readDigitsBySliding(strip(TIMESTAMP.dropLast(1), gap = 2), STRIDE, IntArray(12)))
+
+    @Test fun distinctSignatures() = assertEquals(
+        10, templates.map { signature(it.inkMasks, it.inkLeft, it.width - it.inkLeft) }.distinct().size)
+
+    @Test fun inkMasksOnLightBackground() = assertArrayEquals(
+        intArrayOf(0, 2, 1, 0),
+        inkMasks(intArrayOf(
+            500, 500, 0, 500,
+            500, 765, 550, 500,
+            500, 500, 500, 500)))
+
+    @Test fun inkMasksOnDarkBackground() = assertArrayEquals(
+        intArrayOf(4, 0, 3, 0),
+        inkMasks(intArrayOf(
+            0, 50, 700, 0,
+            0, 0, 700, 0,
+            200, 0, 0, 90)))
+
+    private fun bySegments(strip: IntArray) =
+        IntArray(12).takeIf { reader.readDigitsBySegments(strip, STRIDE, it) }
+
+    private fun readDigits(strip: IntArray) = IntArray(12).takeIf { reader.readDigits(strip, STRIDE, it) }
+
+    private fun inkMasks(gray: IntArray) = IntArray(4).also { computeInkMasks(gray, 4, 3, 0, 4, it) }
+
+    /**
+     * Draws the text from SCAN_LEFT onwards. Digits are [gap] columns apart,
+     * separators always two, a space is four blank columns and '|' a line of
+     * ink one column wide.
+     */
+    private fun strip(text: String, gap: Int): IntArray {
+        val gray = IntArray(STRIDE * HEIGHT) { BACKGROUND }
+        var x = SCAN_LEFT + 2
+        for (c in text) {
+            when (c) {
+                ' ' -> x += 4
+                '|' -> {
+                    for (y in 0 until HEIGHT) {
+                        gray[y * STRIDE + x] = INK
+                    }
+                    x++
+                }
+                else -> {
+                    val glyph = if (c.isDigit()) templates[c - '0'] else glyph(separators.getValue(c))
+                    for (y in 0 until HEIGHT) {
+                        System.arraycopy(glyph.gray, y * glyph.width, gray, y * STRIDE + x, glyph.width)
+                    }
+                    x += glyph.width + if (c.isDigit()) gap else 2
+                }
+            }
+        }
+        return gray
+    }
+
+    // Draws the rows of 1s and 0s at twice their size, vertically in the middle
+    private fun glyph(rows: String): GrayTemplate {
+        val fontRows = rows.split(' ')
+        val width = SCALE * fontRows[0].length
+        val gray = IntArray(width * HEIGHT) { BACKGROUND }
+        fontRows.forEachIndexed { fontY, row ->
+            row.forEachIndexed { fontX, pixel ->
+                if (pixel == '1') {
+                    for (y in PADDING + SCALE * fontY until PADDING + SCALE * (fontY + 1)) {
+                        gray.fill(INK, y * width + SCALE * fontX, y * width + SCALE * (fontX + 1))
+                    }
+                }
+            }
+        }
+        return GrayTemplate(width, HEIGHT, gray)
+    }
+
+    private companion object {
+        const val TIMESTAMP = "2024-01-15 12:30"
+        const val SCALE = 2
+        const val PADDING = 5
+        // Enough blank rows that even the 8 has less ink than background
+        const val HEIGHT = 2 * PADDING + 5 * SCALE
+        const val STRIDE = 140
+        const val SCAN_LEFT = 4
+        const val SCAN_RIGHT = 120
+        const val DIGIT_ADVANCE = 6
+        const val BACKGROUND = 765
+        const val INK = 0
+
+        val font = listOf(
+            "111 101 101 101 111", "010 110 010 010 111", "111 001 111 100 111", "111 001 111 001 111",
+            "101 101 111 001 001", "111 100 111 001 111", "111 100 111 101 111", "111 001 001 001 001",
+            "111 101 111 101 111", "111 101 111 001 111")
+        val separators = mapOf('-' to "00 00 11 00 00", ':' to "0 1 0 1 0")
+    }
+}
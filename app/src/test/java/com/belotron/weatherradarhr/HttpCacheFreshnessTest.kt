@@ -0,0 +1,59 @@
+package com.belotron.weatherradarhr
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class HttpCacheFreshnessTest {
+
+    private val minute = 60_000L
+    private val hour = 60 * minute
+    private val margin = 30_000L
+    private val published = 1_700_000_000_000L
+    private val fiveMinutes = 5 * minute
+
+    @Test fun freshUntilNextPublication() = assertEquals(
+        published + fiveMinutes - margin,
+        freshUntil(published + 2 * minute, "", longArrayOf(published, published - fiveMinutes)))
+
+    @Test fun overdueIsNotFresh() = assertEquals(
+        0L, freshUntil(published + 6 * minute, "", longArrayOf(published, published - fiveMinutes)))
+
+    // The cache saw only every fourth publication, the known period still holds
+    @Test fun sparsePublicationsDontStretchThePeriod() = assertEquals(
+        0L, freshUntil(published + 6 * minute, "", longArrayOf(published, published - 20 * minute, published - 40 * minute)))
+
+    @Test fun sparsePublicationsWhileFresh() = assertEquals(
+        published + fiveMinutes - margin,
+        freshUntil(published + 2 * minute, "", longArrayOf(published, published - 20 * minute)))
+
+    // The server publishes faster than the caller thinks
+    @Test fun shorterGapWins() = assertEquals(
+        published + 2 * minute - margin,
+        freshUntil(published + minute, "", longArrayOf(published, published - 2 * minute)))
+
+    @Test fun singlePublicationUsesThePeriod() = assertEquals(
+        published + fiveMinutes - margin, freshUntil(published + minute, "", longArrayOf(published)))
+
+    // DHMZ reports Last-Modified an hour ahead
+    @Test fun lastModifiedOffByAnHour() = assertEquals(
+        published + fiveMinutes - margin,
+        freshUntil(published + 2 * minute, "", longArrayOf(published + hour, published + hour - fiveMinutes)))
+
+    @Test fun lastModifiedOffByAnHourOverdue() = assertEquals(
+        0L, freshUntil(published + 6 * minute, "", longArrayOf(published + hour, published + hour - fiveMinutes)))
+
+    @Test fun unknownPeriodIsNotFresh() = assertEquals(
+        0L, freshUntil(published + minute, "", longArrayOf(published, published - fiveMinutes),
+            periodMillis = UNKNOWN_PUBLICATION_PERIOD))
+
+    @Test fun noPublicationsIsNotFresh() = assertEquals(0L, freshUntil(published, "", LongArray(0)))
+
+    @Test fun maxAgeWins() = assertEquals(
+        published + 120_000L, freshUntil(published, "public, max-age=120", longArrayOf(published)))
+
+    @Test fun noCacheIsNotFresh() = assertEquals(0L, freshUntil(published, "no-cache", longArrayOf(published)))
+
+    private fun freshUntil(
+        now: Long, cacheControl: String, publications: LongArray, periodMillis: Long = fiveMinutes
+    ) = com.belotron.weatherradarhr.freshUntil(now, cacheControl, publications, periodMillis, margin)
+}
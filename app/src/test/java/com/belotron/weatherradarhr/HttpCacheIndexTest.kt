@@ -0,0 +1,172 @@
+package com.belotron.weatherradarhr
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.io.RandomAccessFile
+
+class HttpCacheIndexTest {
+
+    @get:Rule val tmp = TemporaryFolder()
+
+    private lateinit var dir: File
+
+    @Before fun initIndex() {
+        dir = tmp.newFolder(HTTP_CACHE_DIR)
+        HttpCacheIndex.init(dir, CAP, 0)
+    }
+
+    @Test fun evictsLeastRecentlyUsed() {
+        put("a")
+        put("b")
+        put("c")
+        HttpCacheIndex.recordAccess("a")
+        assertEquals(listOf("b"), put("d"))
+    }
+
+    @Test fun keepsTheEntryJustPut() {
+        put("a")
+        put("b")
+        assertEquals(listOf("a", "b"), put("c", size = 2 * CAP))
+        assertNotNull(HttpCacheIndex["c"])
+    }
+
+    @Test fun deleteEvictedDeletesTheFiles() {
+        put("a")
+        put("b")
+        put("c")
+        HttpCacheIndex.deleteEvicted(put("d"))
+        assertFalse(File(dir, "a").exists())
+        assertFalse(File(dir, "a$GIF_INDEX_SUFFIX").exists())
+        assertTrue(File(dir, "b").exists())
+    }
+
+    // a and b are hard links to the same content, so together they take 100 bytes
+    @Test fun sharedContentCountsOnce() {
+        put("a", content = "same")
+        put("b", content = "same")
+        assertEquals(emptyList<String>(), put("c", size = 2 * SIZE))
+        assertEquals("b", HttpCacheIndex.keyWithContent("same", "a"))
+    }
+
+    // Evicting a alone frees nothing while b still holds the same content
+    @Test fun sharedContentFreedWithTheLastKey() {
+        put("a", content = "same")
+        put("b", content = "same")
+        put("c")
+        assertEquals(listOf("a", "b"), put("d", size = SIZE + SIZE / 2))
+        assertNull(HttpCacheIndex.keyWithContent("same", "x"))
+    }
+
+    @Test fun replacedContentIsNoLongerCounted() {
+        put("a")
+        put("b")
+        put("a", size = 1)
+        assertEquals(emptyList<String>(), put("c", size = SIZE + SIZE / 2))
+    }
+
+    @Test fun replaysTheJournal() {
+        put("a", etag = "\"etag-a\"")
+        put("b")
+        HttpCacheIndex.remove("b")
+        reopen()
+        val entry = HttpCacheIndex["a"]!!
+        assertEquals("\"etag-a\"", entry.etag)
+        assertEquals("hash-a", entry.contentHash)
+        assertEquals(SIZE, entry.size)
+        assertEquals(PUBLISHED, entry.lastModified)
+        assertNull(HttpCacheIndex["b"])
+    }
+
+    @Test fun evictionOrderSurvivesRestart() {
+        put("a")
+        put("b")
+        put("c")
+        HttpCacheIndex.recordAccess("a")
+        reopen()
+        assertEquals(listOf("b"), put("d"))
+    }
+
+    @Test fun sharedContentSurvivesRestart() {
+        put("a", content = "same")
+        put("b", content = "same")
+        reopen()
+        assertEquals(emptyList<String>(), put("c", size = 2 * SIZE))
+    }
+
+    // A process died while appending the record of b
+    @Test fun truncatedJournalKeepsEarlierRecords() {
+        put("a")
+        put("b")
+        reopen()
+        RandomAccessFile(File(dir, JOURNAL_NAME), "rw").use { it.setLength(it.length() - 3) }
+        assertNotNull(HttpCacheIndex["a"])
+        assertNull(HttpCacheIndex["b"])
+        assertFalse(File(dir, "b").exists())
+    }
+
+    @Test fun journalWithoutHeaderClearsTheCache() {
+        put("a")
+        reopen()
+        RandomAccessFile(File(dir, JOURNAL_NAME), "rw").use { it.setLength(2) }
+        assertNull(HttpCacheIndex["a"])
+        assertFalse(File(dir, "a").exists())
+    }
+
+    @Test fun dropsEntriesWithoutFiles() {
+        put("a")
+        put("b")
+        File(dir, "b").delete()
+        reopen()
+        assertNotNull(HttpCacheIndex["a"])
+        assertNull(HttpCacheIndex["b"])
+        assertEquals(emptyList<String>(), put("c", size = 2 * SIZE))
+    }
+
+    @Test fun deletesUnknownFiles() {
+        put("a")
+        reopen()
+        createFile("unknown")
+        createFile("unknown$GIF_INDEX_SUFFIX")
+        assertNull(HttpCacheIndex["unknown"])
+        assertFalse(File(dir, "unknown").exists())
+        assertFalse(File(dir, "unknown$GIF_INDEX_SUFFIX").exists())
+        assertTrue(File(dir, "a").exists())
+        assertTrue(File(dir, "a$GIF_INDEX_SUFFIX").exists())
+    }
+
+    @Test fun deletesStaleTempFiles() {
+        val longAgo = System.currentTimeMillis() - 2 * HOUR_MILLIS
+        val stale = listOf("a$PARTIAL_SUFFIX", "a$PARTIAL_META_SUFFIX", "b$GROWING_SUFFIX")
+            .map { createFile(it).apply { setLastModified(longAgo) } }
+        val fresh = createFile("c$GROWING_SUFFIX")
+        HttpCacheIndex["a"]
+        stale.forEach { assertFalse(it.name, it.exists()) }
+        assertTrue(fresh.exists())
+    }
+
+    private fun put(key: String, content: String = "hash-$key", etag: String? = null, size: Long = SIZE): List<String> {
+        createFile(key)
+        createFile(key + GIF_INDEX_SUFFIX)
+        return HttpCacheIndex.put(key, PUBLISHED, etag, content, size, "")
+    }
+
+    private fun reopen() = HttpCacheIndex.init(dir, CAP, 0)
+
+    private fun createFile(name: String) = File(dir, name).apply { writeText(name) }
+
+    private companion object {
+        const val JOURNAL_NAME = "cache.journal"
+        const val SIZE = 100L
+        const val CAP = 3 * SIZE
+        const val HOUR_MILLIS = 60 * 60_000L
+        const val PUBLISHED = 1_700_000_000_000L
+    }
+}
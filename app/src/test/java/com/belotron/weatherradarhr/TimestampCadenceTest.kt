@@ -0,0 +1,44 @@
+package com.belotron.weatherradarhr
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+
+class TimestampCadenceTest {
+
+    private val minute = 60_000L
+    private val start = 1_700_000_000_000L
+
+    @Test fun anchorsOfEmptyGif() = assertEquals(emptyList<Int>(), anchorFrameIndices(0))
+    @Test fun anchorsOfSingleFrame() = assertEquals(listOf(0), anchorFrameIndices(1))
+    @Test fun anchorsIncludeLastFrame() = assertEquals(listOf(0, 8, 16, 20), anchorFrameIndices(21))
+    @Test fun lastFrameIsAnAnchorAnyway() = assertEquals(listOf(0, 8, 16), anchorFrameIndices(17))
+
+    @Test fun interpolatesBetweenAnchors() = assertArrayEquals(
+        LongArray(21) { start + 5 * minute * it },
+        timestampsFromCadence(21, anchorsOf(21) { start + 5 * minute * it }, 5))
+
+    // Some GIFs start with the newest frame
+    @Test fun interpolatesBackwards() = assertArrayEquals(
+        LongArray(21) { start - 5 * minute * it },
+        timestampsFromCadence(21, anchorsOf(21) { start - 5 * minute * it }, 5))
+
+    @Test fun singleFrame() = assertArrayEquals(longArrayOf(start), timestampsFromCadence(1, mapOf(0 to start), 5))
+
+    // A skipped frame shifts the anchors after it, so the frames get OCRed instead
+    @Test fun skippedFrameFallsBackToOcr() = assertNull(
+        timestampsFromCadence(21, anchorsOf(21) { start + 5 * minute * (if (it < 10) it else it + 1) }, 5))
+
+    @Test fun repeatedFrameFallsBackToOcr() = assertNull(
+        timestampsFromCadence(21, anchorsOf(21) { start + 5 * minute * (if (it < 10) it else it - 1) }, 5))
+
+    @Test fun otherCadenceFallsBackToOcr() = assertNull(
+        timestampsFromCadence(21, anchorsOf(21) { start + 10 * minute * it }, 5))
+
+    @Test fun missingLastAnchorFallsBackToOcr() = assertNull(
+        timestampsFromCadence(21, mapOf(0 to start, 8 to start + 40 * minute), 5))
+
+    private fun anchorsOf(frameCount: Int, timestamp: (Int) -> Long) =
+        anchorFrameIndices(frameCount).associateWith(timestamp)
+}
@@ -0,0 +1,130 @@
+package com.belotron.weatherradarhr.gifdecode
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class GifDecoderTest {
+
+    private val argb = colors.map { 0xff000000.toInt() or it }
+
+    @Test fun fullFrame() = assertArrayEquals(
+        argbOf(fullFrameCodes), GifParser.parse(threeFrameGif()).intoDecoder(ArrayAllocator).pixels(0))
+
+    // Code 0 is transparent in the patch, so the first frame shows through
+    @Test fun patchFrame() = assertArrayEquals(
+        argbOf(byteArrayOf(0, 1, 2, 3, 1, 3, 3, 0, 2, 3, 3, 1)),
+        GifParser.parse(threeFrameGif()).intoDecoder(ArrayAllocator).pixels(1))
+
+    // A frame this short has no lines in the second interlacing pass
+    @Test fun interlacedFrame() = assertArrayEquals(
+        argbOf(byteArrayOf(1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3)),
+        GifParser.parse(threeFrameGif()).intoDecoder(ArrayAllocator).pixels(2))
+
+    @Test fun seekBackwards() {
+        val decoder = GifParser.parse(threeFrameGif()).intoDecoder(ArrayAllocator)
+        decoder.pixels(2)
+        assertArrayEquals(argbOf(fullFrameCodes), decoder.pixels(0))
+    }
+
+    // Seeking back past the checkpoint at frame 8 starts compositing right after it
+    @Test fun seekBackPastCheckpoint() {
+        val decoder = GifParser.parse(dotsGif()).intoDecoder(ArrayAllocator)
+        decoder.pixels(DOT_FRAME_COUNT - 1)
+        assertArrayEquals(dotsImage(13), decoder.pixels(13))
+        assertEquals(13 - 9, decoder.lastSeekReplayCount)
+    }
+
+    // Frame 0 covers the whole canvas, so it gets no checkpoint
+    @Test fun seekBackBeforeFirstCheckpoint() {
+        val decoder = GifParser.parse(dotsGif()).intoDecoder(ArrayAllocator)
+        decoder.pixels(DOT_FRAME_COUNT - 1)
+        assertArrayEquals(dotsImage(3), decoder.pixels(3))
+        assertEquals(3, decoder.lastSeekReplayCount)
+    }
+
+    @Test fun nextFrameReplaysNothing() {
+        val decoder = GifParser.parse(dotsGif()).intoDecoder(ArrayAllocator)
+        decoder.pixels(5)
+        decoder.pixels(6)
+        assertEquals(0, decoder.lastSeekReplayCount)
+    }
+
+    @Test fun seeksAreBoundedByCheckpointInterval() {
+        val decoder = GifParser.parse(dotsGif()).intoDecoder(ArrayAllocator)
+        // Leave checkpoints along the way
+        (0 until DOT_FRAME_COUNT).forEach { decoder.pixels(it) }
+        for (from in 0 until DOT_FRAME_COUNT) {
+            for (to in 0 until DOT_FRAME_COUNT) {
+                decoder.pixels(from)
+                assertArrayEquals("From $from to $to", dotsImage(to), decoder.pixels(to))
+                assertTrue("From $from to $to", decoder.lastSeekReplayCount <= GifDecoder.DEFAULT_CHECKPOINT_INTERVAL)
+            }
+        }
+    }
+
+    @Test fun sampledInterlacedFrame() = assertArrayEquals(
+        argbOf(byteArrayOf(1, 1, 3, 3)), GifParser.parse(threeFrameGif()).intoDecoder(ArrayAllocator, 2).pixels(2))
+
+    @Test fun sampledByTwo() = assertSampledMatchesFull(2)
+    @Test fun sampledByThree() = assertSampledMatchesFull(3)
+
+    // The sampled canvas takes every sampleSize-th pixel of every sampleSize-th row of the full one
+    private fun assertSampledMatchesFull(sampleSize: Int) {
+        val gif = GifParser.parse(largeGif())
+        val full = gif.intoDecoder(ArrayAllocator)
+        val sampled = gif.intoDecoder(ArrayAllocator, sampleSize)
+        val sampledWidth = GifDecoder.sampledSize(LARGE_WIDTH, sampleSize)
+        val sampledHeight = GifDecoder.sampledSize(LARGE_HEIGHT, sampleSize)
+        for (i in gif.frames.indices) {
+            val fullPixels = full.pixels(i)
+            val expected = IntArray(sampledWidth * sampledHeight) {
+                fullPixels[(it / sampledWidth) * sampleSize * LARGE_WIDTH + (it % sampledWidth) * sampleSize]
+            }
+            assertArrayEquals("Frame $i", expected, sampled.pixels(i))
+        }
+    }
+
+    // An interlaced frame tall enough for all four passes, then a patch that doesn't start at a sampled pixel
+    private fun largeGif(): ByteArray {
+        val rows = List(LARGE_HEIGHT) { y -> ByteArray(LARGE_WIDTH) { x -> ((x + 2 * y) % 4).toByte() } }
+        val interlacedRows = (0 until LARGE_HEIGHT step 8) + (4 until LARGE_HEIGHT step 8) +
+            (2 until LARGE_HEIGHT step 4) + (1 until LARGE_HEIGHT step 2)
+        val patch = ByteArray(5 * 7) { (it % 3).toByte() }
+        return TestGif(LARGE_WIDTH, LARGE_HEIGHT, colors)
+            .frame(interlacedRows.map { rows[it] }.reduce { acc, row -> acc + row }, interlace = true)
+            .frame(patch, ix = 3, iy = 1, iw = 5, ih = 7, transIndex = 0)
+            .build()
+    }
+
+    // A full frame followed by frames that each paint a single pixel
+    private fun dotsGif(): ByteArray {
+        val gif = TestGif(4, 3, colors).frame(fullFrameCodes)
+        (1 until DOT_FRAME_COUNT).forEach { i ->
+            gif.frame(byteArrayOf(dotCode(i)), ix = dotX(i), iy = dotY(i), iw = 1, ih = 1)
+        }
+        return gif.build()
+    }
+
+    private fun dotsImage(frameIndex: Int): IntArray {
+        val codes = fullFrameCodes.copyOf()
+        (1..frameIndex).forEach { codes[dotY(it) * 4 + dotX(it)] = dotCode(it) }
+        return argbOf(codes)
+    }
+
+    private fun dotX(frameIndex: Int) = frameIndex % 4
+    private fun dotY(frameIndex: Int) = frameIndex % 3
+    private fun dotCode(frameIndex: Int) = (frameIndex / 4 % 4).toByte()
+
+    // Decodes the LZW data apart from the decoder, the way the frame loader does
+    private fun GifDecoder.pixels(frameIndex: Int) = getPixels(frameIndex, decodePixelCodes(frameIndex)).clone()
+
+    private fun argbOf(codes: ByteArray) = IntArray(codes.size) { argb[codes[it].toInt()] }
+
+    private companion object {
+        const val LARGE_WIDTH = 10
+        const val LARGE_HEIGHT = 17
+        const val DOT_FRAME_COUNT = 20
+    }
+}
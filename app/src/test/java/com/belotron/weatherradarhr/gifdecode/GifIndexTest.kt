@@ -0,0 +1,43 @@
+package com.belotron.weatherradarhr.gifdecode
+
+import org.junit.Assert.assertNull
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.nio.ByteBuffer
+
+class GifIndexTest {
+
+    @get:Rule val tempFolder = TemporaryFolder()
+
+    private val stamp = 1_700_000_000_000L
+    private val gif = threeFrameGif()
+    private val indexFile by lazy { File(tempFolder.root, "radar.gif.index") }
+
+    @Test fun roundTrip() {
+        writeIndex()
+        assertSameGif(GifParser.parse(gif), GifIndex.read(indexFile, stamp, ByteBuffer.wrap(gif))!!)
+    }
+
+    // The frames point into the buffer the index gets read against
+    @Test fun roundTripAtAnOffset() {
+        writeIndex()
+        val data = ByteBuffer.allocate(gif.size + 7).apply { position(7); put(gif); position(7) }
+        assertSameGif(GifParser.parse(gif), GifIndex.read(indexFile, stamp, data)!!)
+    }
+
+    @Test fun staleIndex() {
+        writeIndex()
+        assertNull(GifIndex.read(indexFile, stamp + 1, ByteBuffer.wrap(gif)))
+    }
+
+    @Test fun otherDataLength() {
+        writeIndex()
+        assertNull(GifIndex.read(indexFile, stamp, ByteBuffer.wrap(gif.copyOf(gif.size + 1))))
+    }
+
+    @Test fun noIndex() = assertNull(GifIndex.read(indexFile, stamp, ByteBuffer.wrap(gif)))
+
+    private fun writeIndex() = GifIndex.write(GifParser.parse(gif), gif.size, stamp, indexFile)
+}
@@ -0,0 +1,117 @@
+package com.belotron.weatherradarhr.gifdecode
+
+import com.belotron.weatherradarhr.ImageDecodeException
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.nio.ByteBuffer
+
+class GifParserTest {
+
+    private val gif = threeFrameGif()
+    private val parsed = GifParser.parse(gif)
+
+    @Test fun dimensions() = assertEquals(4 to 3, parsed.width to parsed.height)
+    @Test fun frameCount() = assertEquals(3, parsed.frames.size)
+    @Test fun globalColors() = assertArrayEquals(
+        colors.map { 0xff000000.toInt() or it }.toIntArray(), parsed.gct.copyOf(4))
+    @Test fun delay() = assertEquals(100, parsed.frames[0].delay)
+
+    @Test fun fullFrame() = parsed.frames[0].run {
+        assertEquals(listOf(0, 0, 4, 3), listOf(ix, iy, iw, ih))
+        assertFalse(transparency)
+        assertFalse(interlace)
+        assertEquals(GifFrame.DISPOSAL_NONE, dispose)
+        assertNull(lct)
+    }
+
+    @Test fun patchFrame() = parsed.frames[1].run {
+        assertEquals(listOf(1, 1, 2, 2), listOf(ix, iy, iw, ih))
+        assertTrue(transparency)
+        assertEquals(0, transIndex)
+        assertEquals(GifFrame.DISPOSAL_BACKGROUND, dispose)
+    }
+
+    @Test fun interlacedFrame() = assertTrue(parsed.frames[2].interlace)
+
+    // The frame data starts at the LZW minimum code size
+    @Test fun frameDataOffset() = parsed.frames.forEach {
+        assertEquals(2, gif[it.frameDataOffset].toInt())
+        assertEquals(it.frameData, ByteBuffer.wrap(gif, it.frameDataOffset, it.frameData.remaining()))
+    }
+
+    @Test fun streamedFramesGetReported() {
+        val reported = mutableListOf<Int>()
+        GifParser.streaming(TrickleChannel(gif), ByteBuffer.allocate(gif.size)) { _, frame ->
+            reported += frame.index
+        }.parseStream()
+        assertEquals(listOf(0, 1, 2), reported)
+    }
+
+    @Test fun streamedFrameDataIsCompleteWhenReported() {
+        val body = ByteBuffer.allocate(gif.size)
+        GifParser.streaming(TrickleChannel(gif), body) { _, frame ->
+            assertTrue(body.position() >= frame.frameDataOffset + frame.frameData.remaining())
+        }.parseStream()
+    }
+
+    @Test fun streamingFillsTheBody() {
+        val body = ByteBuffer.allocate(gif.size)
+        GifParser.streaming(TrickleChannel(gif), body) { _, _ -> }.parseStream()
+        assertArrayEquals(gif, body.array())
+    }
+
+    @Test fun streamedMatchesParsed() = assertSameGif(
+        parsed, GifParser.streaming(TrickleChannel(gif), ByteBuffer.allocate(gif.size)) { _, _ -> }.parseStream())
+
+    // A resumed download: the body already holds the bytes received before the break
+    @Test fun resumedInTheHeader() = assertSameGif(parsed, resume(receivedCount = 10))
+    @Test fun resumedInAFrame() = assertSameGif(parsed, resume(receivedCount = parsed.frames[1].frameDataOffset + 2))
+    @Test fun resumedAfterTheLastFrame() = assertSameGif(parsed, resume(receivedCount = gif.size - 1))
+    @Test fun resumedWhenComplete() = assertSameGif(parsed, resume(receivedCount = gif.size))
+
+    @Test fun resumedFramesGetReported() {
+        val reported = mutableListOf<Int>()
+        resume(receivedCount = parsed.frames[1].frameDataOffset + 2) { reported += it }
+        assertEquals(listOf(0, 1, 2), reported)
+    }
+
+    @Test fun resumedBodyIsComplete() {
+        val body = ByteBuffer.allocate(gif.size).put(gif, 0, 20)
+        GifParser.streaming(TrickleChannel(gif.copyOfRange(20, gif.size)), body) { _, _ -> }.parseStream()
+        assertArrayEquals(gif, body.array())
+    }
+
+    @Test(expected = ImageDecodeException::class)
+    fun noFrames() {
+        GifParser.parse(TestGif(4, 3, colors).build())
+    }
+
+    private fun resume(receivedCount: Int, onFrame: (Int) -> Unit = {}): GifSequence {
+        val body = ByteBuffer.allocate(gif.size).put(gif, 0, receivedCount)
+        val rest = TrickleChannel(gif.copyOfRange(receivedCount, gif.size))
+        return GifParser.streaming(rest, body) { _, frame -> onFrame(frame.index) }.parseStream()
+    }
+}
+
+internal fun assertSameGif(expected: GifSequence, actual: GifSequence) {
+    assertEquals(expected.width, actual.width)
+    assertEquals(expected.height, actual.height)
+    assertEquals(expected.bgColor, actual.bgColor)
+    assertArrayEquals(expected.gct, actual.gct)
+    assertEquals(expected.frames.size, actual.frames.size)
+    expected.frames.zip(actual.frames).forEach { (e, a) ->
+        assertEquals(e.index, a.index)
+        assertEquals(listOf(e.ix, e.iy, e.iw, e.ih), listOf(a.ix, a.iy, a.iw, a.ih))
+        assertEquals(e.interlace, a.interlace)
+        assertEquals(e.transparency, a.transparency)
+        assertEquals(e.dispose, a.dispose)
+        assertEquals(e.transIndex, a.transIndex)
+        assertEquals(e.delay, a.delay)
+        assertEquals(e.frameDataOffset, a.frameDataOffset)
+        assertEquals(e.frameData, a.frameData)
+    }
+}
@@ -0,0 +1,44 @@
+package com.belotron.weatherradarhr.gifdecode
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Test
+
+class LzwDecoderTest {
+
+    private val frames = GifParser.parse(threeFrameGif()).frames
+
+    @Test fun fullFrame() = assertArrayEquals(fullFrameCodes, decode(0))
+    @Test fun patch() = assertArrayEquals(patchCodes, decode(1))
+
+    // The decoder gives the codes in the order they're stored, the interlaced rows get sorted out later
+    @Test fun interlacedFrame() = assertArrayEquals(interlacedCodes, decode(2))
+
+    @Test fun stopsAtPixelLimit() = assertArrayEquals(
+        fullFrameCodes.copyOf(5) + ByteArray(7) { -1 }, decode(0, pixelLimit = 5, fill = -1))
+
+    // A decoder is reused frame after frame
+    @Test fun reusedDecoder() {
+        val decoder = LzwDecoder()
+        frames.forEach { frame ->
+            ByteArray(frame.iw * frame.ih).also { decoder.decode(frame, it, it.size) }
+        }
+        assertArrayEquals(fullFrameCodes, ByteArray(12).also { decoder.decode(frames[0], it, it.size) })
+    }
+
+    // Data that ends before the frame is full leaves the rest of the pixels at code 0
+    @Test fun shortData() {
+        val patch = frames[1]
+        val frame = GifFrame(0).apply {
+            iw = 4
+            ih = 3
+            frameData = patch.frameData
+        }
+        assertArrayEquals(patchCodes + ByteArray(8), decode(frame, fill = -1))
+    }
+
+    private fun decode(frameIndex: Int, pixelLimit: Int = Int.MAX_VALUE, fill: Byte = 0) =
+        decode(frames[frameIndex], pixelLimit, fill)
+
+    private fun decode(frame: GifFrame, pixelLimit: Int = Int.MAX_VALUE, fill: Byte = 0) =
+        ByteArray(frame.iw * frame.ih) { fill }.also { LzwDecoder().decode(frame, it, pixelLimit) }
+}
@@ -0,0 +1,148 @@
+package com.belotron.weatherradarhr.gifdecode
+
+import android.graphics.Bitmap
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+import java.nio.channels.ReadableByteChannel
+
+// Builds small GIFs with a 4-color global color table for the tests
+internal class TestGif(private val width: Int, private val height: Int, private val rgbColors: IntArray) {
+    private val out = ByteArrayOutputStream()
+
+    init {
+        require(rgbColors.size == 4)
+        out.write("GIF89a".toByteArray())
+        writeShort(width)
+        writeShort(height)
+        // Global color table of 2^(1 + 1) colors
+        out.write(0x91)
+        out.write(0)
+        out.write(0)
+        rgbColors.forEach { writeRgb(it) }
+    }
+
+    // The codes are indices into the color table, row after row as they go into
+    // the GIF, which for an interlaced frame isn't the order they appear in
+    fun frame(
+        codes: ByteArray, ix: Int = 0, iy: Int = 0, iw: Int = width, ih: Int = height,
+        transIndex: Int? = null, dispose: Int = GifFrame.DISPOSAL_NONE, interlace: Boolean = false
+    ) = apply {
+        require(codes.size == iw * ih)
+        out.write(0x21)
+        out.write(0xf9)
+        out.write(4)
+        out.write((dispose shl 2) or (if (transIndex != null) 1 else 0))
+        writeShort(10)
+        out.write(transIndex ?: 0)
+        out.write(0)
+        out.write(0x2c)
+        writeShort(ix)
+        writeShort(iy)
+        writeShort(iw)
+        writeShort(ih)
+        out.write(if (interlace) 0x40 else 0)
+        out.write(LZW_MIN_CODE_SIZE)
+        val lzwData = lzwEncode(codes)
+        for (start in lzwData.indices step 255) {
+            val end = minOf(start + 255, lzwData.size)
+            out.write(end - start)
+            out.write(lzwData, start, end - start)
+        }
+        out.write(0)
+    }
+
+    fun build(): ByteArray {
+        out.write(0x3b)
+        return out.toByteArray()
+    }
+
+    private fun writeShort(value: Int) {
+        out.write(value and 0xff)
+        out.write(value shr 8)
+    }
+
+    private fun writeRgb(rgb: Int) {
+        out.write(rgb shr 16 and 0xff)
+        out.write(rgb shr 8 and 0xff)
+        out.write(rgb and 0xff)
+    }
+
+    companion object {
+        private const val LZW_MIN_CODE_SIZE = 2
+        private const val CLEAR_CODE = 4
+        private const val END_CODE = 5
+        private const val CODE_SIZE = 3
+
+        // A clear code before every two pixels keeps the dictionary from
+        // growing to the point where the code size goes up
+        fun lzwEncode(codes: ByteArray): ByteArray {
+            val bytes = ByteArrayOutputStream()
+            var bitBuffer = 0
+            var bitCount = 0
+            val writeCode = { code: Int ->
+                bitBuffer = bitBuffer or (code shl bitCount)
+                bitCount += CODE_SIZE
+                while (bitCount >= 8) {
+                    bytes.write(bitBuffer and 0xff)
+                    bitBuffer = bitBuffer ushr 8
+                    bitCount -= 8
+                }
+            }
+            codes.forEachIndexed { i, code ->
+                if (i % 2 == 0) {
+                    writeCode(CLEAR_CODE)
+                }
+                writeCode(code.toInt())
+            }
+            writeCode(END_CODE)
+            if (bitCount > 0) {
+                bytes.write(bitBuffer and 0xff)
+            }
+            return bytes.toByteArray()
+        }
+    }
+}
+
+internal val colors = intArrayOf(0x000000, 0xff0000, 0x00ff00, 0x0000ff)
+
+internal val fullFrameCodes = byteArrayOf(0, 1, 2, 3, 1, 2, 3, 0, 2, 3, 0, 1)
+internal val patchCodes = byteArrayOf(3, 0, 0, 3)
+// Rows 0 and 2 go first in an interlaced frame, then row 1
+internal val interlacedCodes = byteArrayOf(1, 1, 1, 1, 3, 3, 3, 3, 2, 2, 2, 2)
+
+// A full frame, then a 2x2 patch with a hole, then an interlaced full frame
+internal fun threeFrameGif() = TestGif(4, 3, colors)
+    .frame(fullFrameCodes)
+    .frame(patchCodes, ix = 1, iy = 1, iw = 2, ih = 2, transIndex = 0, dispose = GifFrame.DISPOSAL_BACKGROUND)
+    .frame(interlacedCodes, interlace = true)
+    .build()
+
+// Hands out the data a few bytes at a time, like a slow network
+internal class TrickleChannel(data: ByteArray, private val chunkSize: Int = 5) : ReadableByteChannel {
+    private val data = ByteBuffer.wrap(data)
+
+    override fun read(dst: ByteBuffer): Int {
+        if (!data.hasRemaining()) {
+            return -1
+        }
+        val count = minOf(chunkSize, data.remaining(), dst.remaining())
+        val chunk = data.duplicate().also { it.limit(it.position() + count) }
+        dst.put(chunk)
+        data.position(data.position() + count)
+        return count
+    }
+
+    override fun isOpen() = true
+    override fun close() {}
+}
+
+// Hands out plain arrays, the tests don't need pooling or bitmaps
+internal object ArrayAllocator : Allocator {
+    override fun obtain(width: Int, height: Int, config: Bitmap.Config): Bitmap = throw UnsupportedOperationException()
+    override fun release(bitmap: Bitmap) {}
+    override fun obtainByteArray(size: Int) = ByteArray(size)
+    override fun release(bytes: ByteArray) {}
+    override fun obtainIntArray(size: Int) = IntArray(size)
+    override fun release(array: IntArray) {}
+    override fun dispose() {}
+}